@@ -15,6 +15,7 @@
  */
 package com.nesscomputing.mongo;
 
+import java.util.List;
 import java.util.Map;
 
 import org.bson.BSON;
@@ -46,7 +47,9 @@ public final class BSONTransformerBinder
         Preconditions.checkNotNull(encodingTransformers, "transformers can not be null!");
 
         for (Map.Entry<Class<?>, Transformer> entry : encodingTransformers.entrySet()) {
-            BSON.addEncodingHook(entry.getKey(), entry.getValue());
+            if (!isRegistered(BSON.getEncodingHooks(entry.getKey()), entry.getValue())) {
+                BSON.addEncodingHook(entry.getKey(), entry.getValue());
+            }
         }
     }
 
@@ -56,10 +59,28 @@ public final class BSONTransformerBinder
         Preconditions.checkNotNull(decodingTransformers, "transformers can not be null!");
 
         for (Map.Entry<Class<?>, Transformer> entry : decodingTransformers.entrySet()) {
-            BSON.addDecodingHook(entry.getKey(), entry.getValue());
+            if (!isRegistered(BSON.getDecodingHooks(entry.getKey()), entry.getValue())) {
+                BSON.addDecodingHook(entry.getKey(), entry.getValue());
+            }
         }
     }
 
+    /**
+     * The hooks are global, every injector would add its own transformer instances again and they would be
+     * applied more than once.
+     */
+    private static boolean isRegistered(final List<Transformer> hooks, final Transformer transformer)
+    {
+        if (hooks != null) {
+            for (Transformer hook : hooks) {
+                if (hook.getClass() == transformer.getClass()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     public static LinkedBindingBuilder<Transformer> bindEncodingTransformer(final Binder binder, final Class<?> clazz)
     {
         final MapBinder<Class<?>, Transformer> transformerBinder = MapBinder.newMapBinder(binder, new TypeLiteral<Class<?>>() {}, new TypeLiteral<Transformer>() {}, ENCODING_NAMED);
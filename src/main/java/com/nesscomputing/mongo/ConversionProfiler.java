@@ -0,0 +1,204 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Samples the time to convert queue elements into DBObjects and the size of the encoded documents, per element class
+ * or {@link MongoWriterProfileTag}. Only every n-th conversion on average is measured, the others only pay for
+ * a random number.
+ */
+class ConversionProfiler
+{
+    /** Tags beyond this number are profiled together, so that the profile can not grow without bounds. */
+    static final int MAX_TAGS = 1000;
+    static final String OTHER_TAG = "(other)";
+
+    private static final String [] ITEM_NAMES = new String [] {
+        "tag", "samples", "totalMicros", "avgMicros", "maxMicros", "avgBytes", "maxBytes"
+    };
+
+    private static final CompositeType ROW_TYPE;
+    private static final TabularType TABLE_TYPE;
+
+    static {
+        try {
+            ROW_TYPE = new CompositeType("ConversionProfile", "Sampled conversion cost of a tag", ITEM_NAMES, ITEM_NAMES,
+                                         new OpenType<?> [] {
+                                             SimpleType.STRING, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG,
+                                             SimpleType.LONG, SimpleType.LONG, SimpleType.LONG
+                                         });
+            TABLE_TYPE = new TabularType("ConversionProfiles", "Most expensive tags first", ROW_TYPE, new String [] {"tag"});
+        }
+        catch (OpenDataException ode) {
+            throw Throwables.propagate(ode);
+        }
+    }
+
+    private final ConcurrentMap<String, TagProfile> profiles = Maps.newConcurrentMap();
+
+    /** Measure one in sampleRate conversions, 0 turns profiling off. */
+    private volatile int sampleRate;
+
+    ConversionProfiler(final int sampleRate)
+    {
+        setSampleRate(sampleRate);
+    }
+
+    int getSampleRate()
+    {
+        return sampleRate;
+    }
+
+    void setSampleRate(final int sampleRate)
+    {
+        Preconditions.checkArgument(sampleRate >= 0, "sample rate must not be negative!");
+        this.sampleRate = sampleRate;
+    }
+
+    boolean shouldSample()
+    {
+        final int sampleRate = this.sampleRate;
+        return sampleRate > 0 && (sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0);
+    }
+
+    void record(final Object element, final long nanos, final int bytes)
+    {
+        getProfile(tagOf(element)).record(nanos, bytes);
+    }
+
+    /**
+     * Returns the profile tag of an object handed to the writer, its own tag or its class name.
+     */
+    static String tagOf(final Object element)
+    {
+        return element instanceof MongoWriterProfileTag ? ((MongoWriterProfileTag) element).getProfileTag() : element.getClass().getName();
+    }
+
+    private TagProfile getProfile(final String tag)
+    {
+        TagProfile profile = profiles.get(tag);
+        if (profile == null) {
+            final String key = profiles.size() < MAX_TAGS ? tag : OTHER_TAG;
+            profile = profiles.get(key);
+            if (profile == null) {
+                final TagProfile existing = profiles.putIfAbsent(key, profile = new TagProfile(key));
+                if (existing != null) {
+                    profile = existing;
+                }
+            }
+        }
+        return profile;
+    }
+
+    void reset()
+    {
+        profiles.clear();
+    }
+
+    /**
+     * Returns the tags with the highest total conversion time, most expensive first.
+     */
+    TabularData getTopTags(final int maxTags)
+    {
+        final List<TagProfile> sorted = Lists.newArrayList(profiles.values());
+        Collections.sort(sorted, new Comparator<TagProfile>() {
+            @Override
+            public int compare(final TagProfile a, final TagProfile b) {
+                final long aNanos = a.totalNanos.get();
+                final long bNanos = b.totalNanos.get();
+                return aNanos < bNanos ? 1 : (aNanos == bNanos ? 0 : -1);
+            }
+        });
+
+        final TabularDataSupport table = new TabularDataSupport(TABLE_TYPE);
+        try {
+            for (TagProfile profile : sorted.subList(0, Math.min(maxTags, sorted.size()))) {
+                table.put(profile.toCompositeData());
+            }
+        }
+        catch (OpenDataException ode) {
+            throw Throwables.propagate(ode);
+        }
+        return table;
+    }
+
+    private static final class TagProfile
+    {
+        private final String tag;
+        private final AtomicLong samples = new AtomicLong(0L);
+        private final AtomicLong totalNanos = new AtomicLong(0L);
+        private final AtomicLong maxNanos = new AtomicLong(0L);
+        private final AtomicLong totalBytes = new AtomicLong(0L);
+        private final AtomicLong maxBytes = new AtomicLong(0L);
+
+        private TagProfile(final String tag)
+        {
+            this.tag = tag;
+        }
+
+        void record(final long nanos, final int bytes)
+        {
+            samples.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            totalBytes.addAndGet(bytes);
+            updateMax(maxNanos, nanos);
+            updateMax(maxBytes, bytes);
+        }
+
+        private static void updateMax(final AtomicLong max, final long value)
+        {
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get();
+            }
+        }
+
+        CompositeDataSupport toCompositeData() throws OpenDataException
+        {
+            final long samples = Math.max(1L, this.samples.get());
+            return new CompositeDataSupport(ROW_TYPE, ITEM_NAMES, new Object [] {
+                tag,
+                this.samples.get(),
+                totalNanos.get() / 1000L,
+                totalNanos.get() / samples / 1000L,
+                maxNanos.get() / 1000L,
+                totalBytes.get() / samples,
+                maxBytes.get()
+            });
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.google.common.base.Preconditions;
+import com.google.inject.Binder;
+import com.google.inject.Binding;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.TypeLiteral;
+import com.google.inject.binder.LinkedBindingBuilder;
+import com.google.inject.multibindings.MapBinder;
+import com.google.inject.name.Named;
+import com.google.inject.name.Names;
+
+/**
+ * Bind short aliases for the field names of a collection. The writers for the collection store the aliases, readers
+ * get the field names back by using the decoder factory of the {@link FieldAliases} for the collection.
+ */
+public final class FieldAliasBinder
+{
+    public static final String ALIASES_NAME_PREFIX = "_field_aliases_";
+
+    private FieldAliasBinder()
+    {
+    }
+
+    public static LinkedBindingBuilder<String> bindFieldAlias(final Binder binder, final String collectionName, final String fieldName)
+    {
+        final MapBinder<String, String> aliasBinder = MapBinder.newMapBinder(binder, String.class, String.class, getAliasesNamed(collectionName));
+        return aliasBinder.addBinding(fieldName);
+    }
+
+    /**
+     * Returns the aliases bound for a collection, or {@link FieldAliases#NONE} if there are none.
+     */
+    public static FieldAliases getFieldAliases(final Injector injector, final String collectionName)
+    {
+        final Binding<Map<String, String>> aliasesBinding = injector.getExistingBinding(Key.get(new TypeLiteral<Map<String, String>>() {}, getAliasesNamed(collectionName)));
+        return aliasesBinding == null ? FieldAliases.NONE : FieldAliases.of(aliasesBinding.getProvider().get());
+    }
+
+    private static Named getAliasesNamed(final String collectionName)
+    {
+        Preconditions.checkArgument(!StringUtils.isBlank(collectionName), "collection name must not be blank!");
+        return Names.named(ALIASES_NAME_PREFIX + collectionName);
+    }
+}
@@ -0,0 +1,194 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.bson.types.ObjectId;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableBiMap;
+import com.mongodb.DBCallback;
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBEncoder;
+import com.mongodb.DBEncoderFactory;
+import com.mongodb.DefaultDBCallback;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.DefaultDBEncoder;
+
+/**
+ * Maps long field names to short aliases that are stored instead. Field names are replaced on every nesting level
+ * when encoding and restored when decoding, queries must use the aliases. The _id field can not be aliased.
+ */
+public final class FieldAliases
+{
+    public static final FieldAliases NONE = new FieldAliases(ImmutableBiMap.<String, String>of());
+
+    private final ImmutableBiMap<String, String> aliases;
+    private final DBEncoderFactory encoderFactory;
+    private final DBDecoderFactory decoderFactory;
+
+    /**
+     * Create aliases from a map of field names to aliases. Two fields can not share an alias.
+     */
+    public static FieldAliases of(final Map<String, String> aliases)
+    {
+        Preconditions.checkNotNull(aliases, "aliases must not be null!");
+        if (aliases.isEmpty()) {
+            return NONE;
+        }
+
+        for (Map.Entry<String, String> entry : aliases.entrySet()) {
+            checkFieldName(entry.getKey());
+            checkFieldName(entry.getValue());
+        }
+        return new FieldAliases(ImmutableBiMap.copyOf(aliases));
+    }
+
+    private static void checkFieldName(final String name)
+    {
+        Preconditions.checkArgument(!StringUtils.isEmpty(name), "field name must not be empty!");
+        Preconditions.checkArgument(!"_id".equals(name), "_id can not be aliased!");
+        Preconditions.checkArgument(!name.startsWith("$") && name.indexOf('.') < 0, "'%s' is not a valid field name!", name);
+    }
+
+    private FieldAliases(final ImmutableBiMap<String, String> aliases)
+    {
+        this.aliases = aliases;
+
+        if (aliases.isEmpty()) {
+            this.encoderFactory = DefaultDBEncoder.FACTORY;
+            this.decoderFactory = DefaultDBDecoder.FACTORY;
+        }
+        else {
+            this.encoderFactory = new DBEncoderFactory() {
+                @Override
+                public DBEncoder create() {
+                    return new AliasingEncoder(FieldAliases.this);
+                }
+            };
+            this.decoderFactory = new DBDecoderFactory() {
+                @Override
+                public DBDecoder create() {
+                    return new ExpandingDecoder(FieldAliases.this);
+                }
+            };
+        }
+    }
+
+    public boolean isEmpty()
+    {
+        return aliases.isEmpty();
+    }
+
+    /**
+     * Returns the alias for a field name or the field name itself if it has no alias.
+     */
+    public String compact(final String fieldName)
+    {
+        final String alias = aliases.get(fieldName);
+        return alias == null ? fieldName : alias;
+    }
+
+    /**
+     * Returns the field name for an alias or the alias itself if it is not an alias.
+     */
+    public String expand(final String alias)
+    {
+        final String fieldName = aliases.inverse().get(alias);
+        return fieldName == null ? alias : fieldName;
+    }
+
+    /**
+     * Encoders that write the aliases instead of the field names.
+     */
+    public DBEncoderFactory getEncoderFactory()
+    {
+        return encoderFactory;
+    }
+
+    /**
+     * Decoders that restore the field names. Set it on a collection with {@link DBCollection#setDBDecoderFactory(DBDecoderFactory)}.
+     */
+    public DBDecoderFactory getDecoderFactory()
+    {
+        return decoderFactory;
+    }
+
+    private static final class AliasingEncoder extends DefaultDBEncoder
+    {
+        private final FieldAliases fieldAliases;
+
+        private AliasingEncoder(final FieldAliases fieldAliases)
+        {
+            this.fieldAliases = fieldAliases;
+        }
+
+        @Override
+        protected void _put(final byte type, final String name)
+        {
+            super._put(type, fieldAliases.compact(name));
+        }
+    }
+
+    private static final class ExpandingDecoder extends DefaultDBDecoder
+    {
+        private final FieldAliases fieldAliases;
+
+        private ExpandingDecoder(final FieldAliases fieldAliases)
+        {
+            this.fieldAliases = fieldAliases;
+        }
+
+        @Override
+        public DBCallback getDBCallback(final DBCollection collection)
+        {
+            return new ExpandingCallback(collection, fieldAliases);
+        }
+    }
+
+    private static final class ExpandingCallback extends DefaultDBCallback
+    {
+        private final FieldAliases fieldAliases;
+
+        private ExpandingCallback(final DBCollection collection, final FieldAliases fieldAliases)
+        {
+            super(collection);
+            this.fieldAliases = fieldAliases;
+        }
+
+        @Override
+        public void objectStart(final boolean array, final String name)
+        {
+            super.objectStart(array, name == null ? null : fieldAliases.expand(name));
+        }
+
+        @Override
+        protected void _put(final String name, final Object o)
+        {
+            super._put(fieldAliases.expand(name), o);
+        }
+
+        @Override
+        public void gotDBRef(final String name, final String ns, final ObjectId id)
+        {
+            super.gotDBRef(fieldAliases.expand(name), ns, id);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nullable;
+
+import org.skife.config.TimeSpan;
+
+import com.google.common.base.Preconditions;
+import com.mongodb.DBEncoder;
+import com.mongodb.DBEncoderFactory;
+import com.mongodb.DefaultDBEncoder;
+
+/**
+ * Keeps the pending writes as DBObjects or Callables on the heap. The conversion of Callables into DBObjects happens
+ * on the writer thread. The queue is bounded by the number of elements and uses a ring buffer, so enqueueing and
+ * draining do not allocate. Only changing the capacity replaces the ring buffer.
+ */
+class HeapWriteQueue implements MongoWriteQueue
+{
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+
+    /** Pending elements, starting at head. Can be larger than the capacity after shrinking the queue. Guarded by lock. */
+    private Object [] elements;
+    private int head = 0;
+    private int count = 0;
+    private int capacity;
+
+    private final DBEncoderFactory encoderFactory;
+
+    HeapWriteQueue(final int queueLength)
+    {
+        this(queueLength, DefaultDBEncoder.FACTORY);
+    }
+
+    HeapWriteQueue(final int queueLength, final DBEncoderFactory encoderFactory)
+    {
+        Preconditions.checkArgument(queueLength > 0, "queue length must be positive!");
+        this.elements = new Object[queueLength];
+        this.capacity = queueLength;
+        this.encoderFactory = encoderFactory;
+    }
+
+    @Override
+    public boolean offer(final Object element, @Nullable final TimeSpan timeout) throws InterruptedException
+    {
+        long nanos = timeout == null ? 0L : timeout.getUnit().toNanos(timeout.getPeriod());
+
+        lock.lockInterruptibly();
+        try {
+            while (count >= capacity) {
+                if (timeout == null) {
+                    notFull.await();
+                }
+                else {
+                    if (nanos <= 0L) {
+                        return false;
+                    }
+                    nanos = notFull.awaitNanos(nanos);
+                }
+            }
+
+            elements[(head + count) % elements.length] = element;
+            count++;
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(final List<Object> drained)
+    {
+        lock.lock();
+        try {
+            final int drainCount = count;
+            for (int i = 0; i < drainCount; i++) {
+                final int index = (head + i) % elements.length;
+                drained.add(elements[index]);
+                elements[index] = null;
+            }
+            head = (head + drainCount) % elements.length;
+            count = 0;
+
+            if (drainCount > 0) {
+                notFull.signalAll();
+            }
+            return drainCount;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isDrainPending()
+    {
+        return false;
+    }
+
+    @Override
+    public DBEncoder createEncoder()
+    {
+        return encoderFactory.create();
+    }
+
+    @Override
+    public void setCapacity(final int capacity)
+    {
+        Preconditions.checkArgument(capacity > 0, "queue length must be positive!");
+
+        lock.lock();
+        try {
+            final Object [] newElements = new Object[Math.max(capacity, count)];
+            for (int i = 0; i < count; i++) {
+                newElements[i] = elements[(head + i) % elements.length];
+            }
+            this.elements = newElements;
+            this.head = 0;
+            this.capacity = capacity;
+            notFull.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getCapacity()
+    {
+        lock.lock();
+        try {
+            return capacity;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size()
+    {
+        lock.lock();
+        try {
+            return count;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getBytesUsed()
+    {
+        return 0L;
+    }
+
+    @Override
+    public long getBytesHighWater()
+    {
+        return 0L;
+    }
+}
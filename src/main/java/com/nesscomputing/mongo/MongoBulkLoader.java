@@ -0,0 +1,424 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.skife.config.TimeSpan;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.util.JSON;
+import com.mongodb.util.JSONParseException;
+import com.nesscomputing.logging.Log;
+
+/**
+ * Loads a dump file into a MongoWriter. The file is memory mapped in chunks that end on a document boundary, the
+ * chunks are parsed in parallel and every parser thread writes its documents into the writer. When the writer queue
+ * is full, the parsers wait, so the file is read no faster than the documents are written. Documents that the writer
+ * will never take, e.g. because they are larger than its off-heap queue, are skipped and counted.
+ *
+ * The loader reports the offset up to which all documents were handed to the writer. A load that was interrupted
+ * can be resumed from that offset. Documents that the writer had not sent yet are lost, use assign-ids and the
+ * duplicate filter of the writer or ids in the file to make a resumed load idempotent.
+ */
+public class MongoBulkLoader
+{
+    private static final Log LOG = Log.findLog();
+
+    public enum Format
+    {
+        /** One JSON document per line, as written by mongoexport. */
+        NDJSON,
+
+        /** BSON documents back to back, as written by mongodump. */
+        BSON;
+    }
+
+    /** Wait time before retrying a write that the writer refused for now, e.g. because of an enqueue timeout. */
+    private static final long WRITE_RETRY_MILLIS = 10L;
+
+    private final MongoWriter mongoWriter;
+    private final Format format;
+
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private int chunkSize = 8 * 1024 * 1024;
+    private long startOffset = 0L;
+    private TimeSpan progressInterval = new TimeSpan("10s");
+
+    private final AtomicLong documents = new AtomicLong(0L);
+    private final AtomicLong parseErrors = new AtomicLong(0L);
+    private final AtomicLong droppedDocuments = new AtomicLong(0L);
+    private volatile long committedOffset = 0L;
+    private volatile long totalBytes = 0L;
+    private volatile long startTime = 0L;
+
+    /** End offsets of the finished chunks that are not contiguous with the committed offset yet. Guarded by itself. */
+    private final SortedMap<Long, Long> finishedChunks = new TreeMap<Long, Long>();
+
+    /** First error that stopped a parser. */
+    private volatile Exception failure = null;
+
+    public MongoBulkLoader(final MongoWriter mongoWriter, final Format format)
+    {
+        Preconditions.checkNotNull(mongoWriter, "writer must not be null!");
+        Preconditions.checkNotNull(format, "format must not be null!");
+
+        this.mongoWriter = mongoWriter;
+        this.format = format;
+    }
+
+    /**
+     * Number of threads that parse chunks. Defaults to the number of processors.
+     */
+    public MongoBulkLoader withParallelism(final int parallelism)
+    {
+        Preconditions.checkArgument(parallelism > 0, "parallelism must be positive!");
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Size of the chunks that are mapped and parsed at once. A chunk grows if a single document is larger.
+     */
+    public MongoBulkLoader withChunkSize(final int chunkSize)
+    {
+        Preconditions.checkArgument(chunkSize > 0, "chunk size must be positive!");
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * Start loading at a byte offset, e.g. the committed offset of an interrupted load. The offset must be at
+     * the start of a document.
+     */
+    public MongoBulkLoader withStartOffset(final long startOffset)
+    {
+        Preconditions.checkArgument(startOffset >= 0L, "start offset must not be negative!");
+        this.startOffset = startOffset;
+        return this;
+    }
+
+    /**
+     * Time between two progress messages in the log.
+     */
+    public MongoBulkLoader withProgressInterval(final TimeSpan progressInterval)
+    {
+        this.progressInterval = progressInterval;
+        return this;
+    }
+
+    /**
+     * Load a file. Returns the offset after the last document, all documents before it were handed to the writer.
+     */
+    public long load(final File file) throws IOException, InterruptedException
+    {
+        Preconditions.checkState(mongoWriter.isEnabled(), "The writer is not enabled!");
+
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            return load(file.getName(), randomAccessFile.getChannel());
+        }
+        finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private long load(final String fileName, final FileChannel channel) throws IOException, InterruptedException
+    {
+        totalBytes = channel.size();
+        Preconditions.checkArgument(startOffset <= totalBytes, "start offset %s is after the end of %s", startOffset, fileName);
+
+        committedOffset = startOffset;
+        startTime = System.nanoTime();
+        LOG.info("Loading %s (%d bytes, %s) from offset %d with %d threads", fileName, totalBytes, format, startOffset, parallelism);
+
+        final ThreadFactoryBuilder threadFactoryBuilder = new ThreadFactoryBuilder().setDaemon(true).setNameFormat("mongo-bulk-loader-%d");
+        final ExecutorService executor = Executors.newFixedThreadPool(parallelism, threadFactoryBuilder.build());
+        // Bounds the mapped chunks that wait for a parser.
+        final Semaphore chunkPermits = new Semaphore(parallelism * 2);
+
+        long lastProgress = System.nanoTime();
+        try {
+            long position = startOffset;
+            while (position < totalBytes && failure == null) {
+                final ByteBuffer chunk = mapChunk(channel, position);
+                final long chunkStart = position;
+                position += chunk.remaining();
+
+                chunkPermits.acquire();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            parseChunk(chunk, chunkStart);
+                            finishChunk(chunkStart, chunkStart + chunk.limit());
+                        }
+                        catch (Exception e) {
+                            if (e instanceof InterruptedException) {
+                                Thread.currentThread().interrupt();
+                            }
+                            LOG.error(e, "Could not load chunk at offset %d", chunkStart);
+                            if (failure == null) {
+                                failure = e;
+                            }
+                        }
+                        finally {
+                            chunkPermits.release();
+                        }
+                    }
+                });
+
+                lastProgress = logProgress(lastProgress, false);
+            }
+
+            executor.shutdown();
+            while (!executor.awaitTermination(progressInterval.getMillis(), TimeUnit.MILLISECONDS)) {
+                lastProgress = logProgress(lastProgress, false);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        logProgress(lastProgress, true);
+
+        final Exception failure = this.failure;
+        if (failure != null) {
+            throw new IOException(String.format("Loading %s failed, resume from offset %d", fileName, committedOffset), failure);
+        }
+        return committedOffset;
+    }
+
+    /**
+     * Map the next chunk, up to the end of the last complete document in it.
+     */
+    private ByteBuffer mapChunk(final FileChannel channel, final long position) throws IOException
+    {
+        long windowSize = chunkSize;
+        while (true) {
+            final long size = Math.min(windowSize, totalBytes - position);
+            final MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            window.order(ByteOrder.LITTLE_ENDIAN);
+
+            final boolean atEnd = position + size == totalBytes;
+            final int end = format == Format.NDJSON ? findLineEnd(window, atEnd) : findDocumentEnd(window, position, atEnd);
+            if (end > 0) {
+                window.limit(end);
+                return window.slice().order(ByteOrder.LITTLE_ENDIAN);
+            }
+            // A single document is larger than the window.
+            Preconditions.checkState(windowSize <= Integer.MAX_VALUE / 2, "document at offset %s is too large!", position);
+            windowSize *= 2;
+        }
+    }
+
+    private static int findLineEnd(final ByteBuffer window, final boolean atEnd)
+    {
+        if (atEnd) {
+            return window.limit();
+        }
+        for (int i = window.limit() - 1; i >= 0; i--) {
+            if (window.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    private static int findDocumentEnd(final ByteBuffer window, final long position, final boolean atEnd) throws IOException
+    {
+        int end = 0;
+        while (end + 4 <= window.limit()) {
+            final int length = window.getInt(end);
+            if (length < 5) {
+                throw new IOException(String.format("Invalid document length %d at offset %d", length, position + end));
+            }
+            if (end + length > window.limit()) {
+                break;
+            }
+            end += length;
+        }
+        if (atEnd && end < window.limit()) {
+            throw new IOException(String.format("Truncated document at offset %d", position + end));
+        }
+        return end;
+    }
+
+    private void parseChunk(final ByteBuffer chunk, final long chunkStart) throws InterruptedException
+    {
+        if (format == Format.NDJSON) {
+            parseLines(chunk, chunkStart);
+        }
+        else {
+            parseDocuments(chunk, chunkStart);
+        }
+    }
+
+    private void parseLines(final ByteBuffer chunk, final long chunkStart) throws InterruptedException
+    {
+        byte [] line = new byte[1024];
+        int lineStart = 0;
+        while (lineStart < chunk.limit()) {
+            int lineEnd = lineStart;
+            while (lineEnd < chunk.limit() && chunk.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+
+            final int length = lineEnd - lineStart;
+            if (line.length < length) {
+                line = new byte[Math.max(length, line.length * 2)];
+            }
+            chunk.position(lineStart);
+            chunk.get(line, 0, length);
+
+            final String json = new String(line, 0, length, Charsets.UTF_8).trim();
+            if (!json.isEmpty()) {
+                try {
+                    final Object parsed = JSON.parse(json);
+                    if (!(parsed instanceof DBObject)) {
+                        throw new JSONParseException(json, 0);
+                    }
+                    write((DBObject) parsed, chunkStart + lineStart);
+                }
+                catch (JSONParseException jpe) {
+                    parseErrors.incrementAndGet();
+                    LOG.warn("Skipping unparseable line at offset %d", chunkStart + lineStart);
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+    }
+
+    private void parseDocuments(final ByteBuffer chunk, final long chunkStart) throws InterruptedException
+    {
+        final DBDecoder decoder = DefaultDBDecoder.FACTORY.create();
+        int offset = 0;
+        while (offset < chunk.limit()) {
+            final byte [] document = new byte[chunk.getInt(offset)];
+            chunk.position(offset);
+            chunk.get(document);
+            write(decoder.decode(document, (DBCollection) null), chunkStart + offset);
+            offset += document.length;
+        }
+    }
+
+    private void write(final DBObject dbObject, final long offset) throws InterruptedException
+    {
+        // Waits while the queue is full. With an enqueue timeout, during cooloff or over budget, the writer refuses instead.
+        while (true) {
+            switch (mongoWriter.tryWrite(dbObject)) {
+            case ENQUEUED:
+                documents.incrementAndGet();
+                return;
+            case DROPPED:
+                droppedDocuments.incrementAndGet();
+                LOG.warn("Skipping document at offset %d that the writer does not take", offset);
+                return;
+            default:
+                Thread.sleep(WRITE_RETRY_MILLIS);
+            }
+        }
+    }
+
+    private void finishChunk(final long chunkStart, final long chunkEnd)
+    {
+        synchronized (finishedChunks) {
+            finishedChunks.put(chunkStart, chunkEnd);
+            long offset = committedOffset;
+            while (finishedChunks.containsKey(offset)) {
+                offset = finishedChunks.remove(offset);
+            }
+            committedOffset = offset;
+        }
+    }
+
+    private long logProgress(final long lastProgress, final boolean force)
+    {
+        final long now = System.nanoTime();
+        if (!force && now - lastProgress < TimeUnit.MILLISECONDS.toNanos(progressInterval.getMillis())) {
+            return lastProgress;
+        }
+
+        final long bytes = totalBytes - startOffset;
+        LOG.info("Loaded %d documents (%d bad), %d of %d bytes (%d%%), %d docs/sec",
+                 documents.get(), parseErrors.get() + droppedDocuments.get(), committedOffset, totalBytes,
+                 bytes == 0L ? 100L : (committedOffset - startOffset) * 100L / bytes, getDocsPerSecond());
+        return now;
+    }
+
+    /**
+     * Number of documents handed to the writer.
+     */
+    public long getDocuments()
+    {
+        return documents.get();
+    }
+
+    /**
+     * Number of lines that could not be parsed and were skipped.
+     */
+    public long getParseErrors()
+    {
+        return parseErrors.get();
+    }
+
+    /**
+     * Number of documents that the writer did not take, e.g. because they are larger than its off-heap queue, and
+     * were skipped.
+     */
+    public long getDroppedDocuments()
+    {
+        return droppedDocuments.get();
+    }
+
+    /**
+     * Offset up to which all documents were handed to the writer.
+     */
+    public long getCommittedOffset()
+    {
+        return committedOffset;
+    }
+
+    public long getTotalBytes()
+    {
+        return totalBytes;
+    }
+
+    public long getDocsPerSecond()
+    {
+        final long elapsed = System.nanoTime() - startTime;
+        return startTime == 0L || elapsed <= 0L ? 0L : documents.get() * TimeUnit.SECONDS.toNanos(1L) / elapsed;
+    }
+}
@@ -0,0 +1,302 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nullable;
+
+import org.skife.config.TimeSpan;
+import org.weakref.jmx.Managed;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.nesscomputing.logging.Log;
+
+/**
+ * Read-through cache for the documents of a Mongo collection, looked up by _id. Concurrent lookups of the same
+ * missing id share a single query, lookups of multiple ids load all missing ones with $in queries. Ids without
+ * a document are cached as well. The cached documents are shared between callers and must not be modified.
+ */
+public class MongoCache
+{
+    private static final Log LOG = Log.findLog();
+
+    private final MongoCacheConfig mongoCacheConfig;
+    private final String collectionName;
+    private final FieldAliases fieldAliases;
+    private final int maxBatchSize;
+
+    private final AtomicReference<DBCollection> dbCollection = new AtomicReference<DBCollection>(null);
+
+    private final LoadingCache<Object, Optional<DBObject>> cache;
+
+    private final AtomicLong batchLoads = new AtomicLong(0L);
+    private final AtomicLong batchLoadedIds = new AtomicLong(0L);
+
+    MongoCache(final MongoCacheConfig mongoCacheConfig)
+    {
+        this(mongoCacheConfig, FieldAliases.NONE);
+    }
+
+    MongoCache(final MongoCacheConfig mongoCacheConfig, final FieldAliases fieldAliases)
+    {
+        Preconditions.checkNotNull(fieldAliases, "field aliases must not be null!");
+        Preconditions.checkArgument(mongoCacheConfig.getMaxBatchSize() > 0, "batch size must be positive!");
+
+        this.mongoCacheConfig = mongoCacheConfig;
+        this.collectionName = mongoCacheConfig.getCollectionName();
+        this.fieldAliases = fieldAliases;
+        this.maxBatchSize = mongoCacheConfig.getMaxBatchSize();
+
+        final CacheBuilder<Object, Object> cacheBuilder = CacheBuilder.newBuilder()
+            .maximumSize(mongoCacheConfig.getMaximumSize())
+            .expireAfterWrite(mongoCacheConfig.getExpireAfterWrite().getMillis(), TimeUnit.MILLISECONDS)
+            .recordStats();
+
+        final TimeSpan expireAfterAccess = mongoCacheConfig.getExpireAfterAccess();
+        if (expireAfterAccess != null) {
+            cacheBuilder.expireAfterAccess(expireAfterAccess.getMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        this.cache = cacheBuilder.build(new DocumentLoader());
+    }
+
+    synchronized void start()
+    {
+        Preconditions.checkState(dbCollection.get() == null, "already started, boldly refusing to start twice!");
+
+        LOG.info("Starting Mongo Cache for collection %s.", collectionName);
+
+        final DBCollection collection;
+        try {
+            collection = MongoConnections.connect(mongoCacheConfig.getMongoUri(), collectionName);
+        }
+        catch (UnknownHostException uhe) {
+            throw Throwables.propagate(uhe);
+        }
+        if (!fieldAliases.isEmpty()) {
+            collection.setDBDecoderFactory(fieldAliases.getDecoderFactory());
+        }
+        dbCollection.set(collection);
+    }
+
+    synchronized void stop()
+    {
+        final DBCollection collection = dbCollection.getAndSet(null);
+        if (collection != null) {
+            LOG.info("Stopping Mongo Cache for collection %s.", collectionName);
+            MongoConnections.close(collection);
+            cache.invalidateAll();
+        }
+    }
+
+    /**
+     * Returns the document with the given id or null if there is none.
+     */
+    @Nullable
+    public DBObject get(final Object id)
+    {
+        try {
+            return cache.get(id).orNull();
+        }
+        catch (ExecutionException ee) {
+            throw Throwables.propagate(ee.getCause());
+        }
+        catch (UncheckedExecutionException uee) {
+            throw Throwables.propagate(uee.getCause());
+        }
+    }
+
+    /**
+     * Returns the documents for the given ids, in the order of the ids. Ids without a document are left out.
+     */
+    public Map<Object, DBObject> getAll(final Iterable<?> ids)
+    {
+        final Map<Object, Optional<DBObject>> cached;
+        try {
+            cached = cache.getAll(ids);
+        }
+        catch (ExecutionException ee) {
+            throw Throwables.propagate(ee.getCause());
+        }
+        catch (UncheckedExecutionException uee) {
+            throw Throwables.propagate(uee.getCause());
+        }
+
+        final Map<Object, DBObject> result = Maps.newLinkedHashMap();
+        for (Map.Entry<Object, Optional<DBObject>> entry : cached.entrySet()) {
+            if (entry.getValue().isPresent()) {
+                result.put(entry.getKey(), entry.getValue().get());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Drop a document from the cache, e.g. after it was changed.
+     */
+    public void invalidate(final Object id)
+    {
+        cache.invalidate(id);
+    }
+
+    @Managed
+    public void invalidateAll()
+    {
+        cache.invalidateAll();
+    }
+
+    private DBCollection getCollection()
+    {
+        final DBCollection collection = dbCollection.get();
+        Preconditions.checkState(collection != null, "Mongo cache for %s is not started!", collectionName);
+        return collection;
+    }
+
+    @Managed
+    public long getSize()
+    {
+        return cache.size();
+    }
+
+    @Managed
+    public long getHitCount()
+    {
+        return cache.stats().hitCount();
+    }
+
+    @Managed
+    public long getMissCount()
+    {
+        return cache.stats().missCount();
+    }
+
+    @Managed
+    public double getHitRate()
+    {
+        return cache.stats().hitRate();
+    }
+
+    @Managed
+    public long getLoadCount()
+    {
+        return cache.stats().loadCount();
+    }
+
+    @Managed
+    public long getLoadExceptionCount()
+    {
+        return cache.stats().loadExceptionCount();
+    }
+
+    @Managed
+    public double getAverageLoadMillis()
+    {
+        return cache.stats().averageLoadPenalty() / TimeUnit.MILLISECONDS.toNanos(1L);
+    }
+
+    @Managed
+    public long getTotalLoadTimeMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(cache.stats().totalLoadTime());
+    }
+
+    @Managed
+    public long getEvictionCount()
+    {
+        return cache.stats().evictionCount();
+    }
+
+    @Managed
+    public long getBatchLoads()
+    {
+        return batchLoads.get();
+    }
+
+    @Managed
+    public long getBatchLoadedIds()
+    {
+        return batchLoadedIds.get();
+    }
+
+    private class DocumentLoader extends CacheLoader<Object, Optional<DBObject>>
+    {
+        @Override
+        public Optional<DBObject> load(final Object id)
+        {
+            return Optional.fromNullable(getCollection().findOne(new BasicDBObject("_id", id)));
+        }
+
+        @Override
+        public Map<Object, Optional<DBObject>> loadAll(final Iterable<? extends Object> ids)
+        {
+            final DBCollection collection = getCollection();
+            final Map<Object, Optional<DBObject>> result = Maps.newHashMap();
+
+            for (List<? extends Object> batch : Iterables.partition(ids, maxBatchSize)) {
+                batchLoads.incrementAndGet();
+                batchLoadedIds.addAndGet(batch.size());
+
+                final Multimap<Object, Object> requestedIds = HashMultimap.create();
+                for (Object id : batch) {
+                    requestedIds.put(MongoIds.matchKey(id), id);
+                }
+
+                // At most one document per id, so the whole result fits into the first reply.
+                final DBCursor cursor = collection.find(new BasicDBObject("_id", new BasicDBObject("$in", batch))).batchSize(batch.size());
+                try {
+                    while (cursor.hasNext()) {
+                        // The server matches numeric ids across types, so store the document under the ids that were asked for.
+                        final DBObject dbObject = cursor.next();
+                        for (Object id : requestedIds.get(MongoIds.matchKey(dbObject.get("_id")))) {
+                            result.put(id, Optional.of(dbObject));
+                        }
+                    }
+                }
+                finally {
+                    cursor.close();
+                }
+
+                for (Object id : batch) {
+                    if (!result.containsKey(id)) {
+                        result.put(id, Optional.<DBObject>absent());
+                    }
+                }
+            }
+            return result;
+        }
+    }
+}
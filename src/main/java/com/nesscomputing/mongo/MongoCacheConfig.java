@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import org.skife.config.Config;
+import org.skife.config.Default;
+import org.skife.config.DefaultNull;
+import org.skife.config.TimeSpan;
+
+import com.mongodb.MongoURI;
+
+/**
+ * Configure a read-through cache for the documents of a Mongo collection.
+ */
+public abstract class MongoCacheConfig
+{
+    /**
+     * Maximum number of documents in the cache. Ids that do not exist count as well.
+     */
+    @Config({"ness.mongo.cache.${cachename}.maximum-size","ness.mongo.cache.maximum-size"})
+    @Default("10000")
+    public long getMaximumSize()
+    {
+        return 10000L;
+    }
+
+    /**
+     * Time after which a cached document is loaded again.
+     */
+    @Config({"ness.mongo.cache.${cachename}.expire-after-write","ness.mongo.cache.expire-after-write"})
+    @Default("5m")
+    public TimeSpan getExpireAfterWrite()
+    {
+        return new TimeSpan("5m");
+    }
+
+    /**
+     * If set, evict documents that were not looked up for that long.
+     */
+    @Config({"ness.mongo.cache.${cachename}.expire-after-access","ness.mongo.cache.expire-after-access"})
+    @DefaultNull
+    public TimeSpan getExpireAfterAccess()
+    {
+        return null;
+    }
+
+    /**
+     * Maximum number of ids in a single $in query when loading multiple documents.
+     */
+    @Config({"ness.mongo.cache.${cachename}.max-batch-size","ness.mongo.cache.max-batch-size"})
+    @Default("500")
+    public int getMaxBatchSize()
+    {
+        return 500;
+    }
+
+    /**
+     * The Mongo DB Server to connect to.
+     */
+    @Config({"ness.mongo.cache.${cachename}.uri","ness.mongo.cache.uri"})
+    public abstract MongoURI getMongoUri();
+
+    /**
+     * Name of the collection to read from.
+     */
+    @Config({"ness.mongo.cache.${cachename}.collection-name","ness.mongo.cache.collection-name"})
+    public abstract String getCollectionName();
+}
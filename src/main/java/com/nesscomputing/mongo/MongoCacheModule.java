@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import static java.lang.String.format;
+
+import org.apache.commons.lang3.StringUtils;
+import org.weakref.jmx.guice.MBeanModule;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Provider;
+import com.google.inject.Scopes;
+import com.google.inject.name.Named;
+import com.google.inject.name.Names;
+import com.nesscomputing.config.ConfigProvider;
+import com.nesscomputing.lifecycle.LifecycleStage;
+import com.nesscomputing.lifecycle.guice.AbstractLifecycleProvider;
+import com.nesscomputing.lifecycle.guice.LifecycleAction;
+/**
+ * Defines a new read-through cache for a Mongo collection. Multiple modules can be installed for multiple collections.
+ */
+public class MongoCacheModule extends AbstractModule
+{
+    private final String cacheName;
+
+    public MongoCacheModule(final String cacheName)
+    {
+        Preconditions.checkState(!StringUtils.isBlank(cacheName), "Cache name must not be blank!");
+
+        this.cacheName = cacheName;
+    }
+
+    @Override
+    protected void configure()
+    {
+        final Named named = Names.named(cacheName);
+        bind(MongoCacheConfig.class).annotatedWith(named).toProvider(ConfigProvider.of(MongoCacheConfig.class, ImmutableMap.of("cachename", cacheName))).in(Scopes.SINGLETON);
+        bind(MongoCache.class).annotatedWith(named).toProvider(new MongoCacheProvider(named)).asEagerSingleton();
+
+        install(new MBeanModule() {
+            @Override
+            public void configureMBeans() {
+                export(MongoCache.class).annotatedWith(named).as(format("ness.mongo.cache:name=%s", cacheName));
+            }
+        });
+    }
+
+    public static class MongoCacheProvider extends AbstractLifecycleProvider<MongoCache> implements Provider<MongoCache>
+    {
+        private final Named named;
+        private MongoCacheConfig cacheConfig = null;
+        private FieldAliases fieldAliases = FieldAliases.NONE;
+
+        private MongoCacheProvider(final Named named)
+        {
+            this.named = named;
+
+            addAction(LifecycleStage.START_STAGE, new LifecycleAction<MongoCache>() {
+                    @Override
+                    public void performAction(final MongoCache mongoCache) {
+                        mongoCache.start();
+                    }
+                });
+
+            addAction(LifecycleStage.STOP_STAGE, new LifecycleAction<MongoCache>() {
+                    @Override
+                    public void performAction(final MongoCache mongoCache) {
+                        mongoCache.stop();
+                    }
+                });
+        }
+
+        @Inject
+        void setInjector(final Injector injector)
+        {
+            this.cacheConfig = injector.getInstance(Key.get(MongoCacheConfig.class, named));
+            this.fieldAliases = FieldAliasBinder.getFieldAliases(injector, cacheConfig.getCollectionName());
+        }
+
+        @Override
+        public MongoCache internalGet()
+        {
+            Preconditions.checkState(cacheConfig != null, "no cacheConfig was injected!");
+            return new MongoCache(cacheConfig, fieldAliases);
+        }
+    }
+}
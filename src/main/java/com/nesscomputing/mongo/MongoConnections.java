@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import java.net.UnknownHostException;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+import org.skife.config.TimeSpan;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.MongoURI;
+import com.nesscomputing.logging.Log;
+
+/**
+ * Connection handling shared by the readers, writers and tailers.
+ */
+final class MongoConnections
+{
+    private static final Log LOG = Log.findLog();
+
+    private static final DBObject PING_COMMAND = new BasicDBObject("ping", 1);
+
+    private MongoConnections()
+    {
+    }
+
+    /**
+     * Returns a collection on a new connection to the server. The driver connects lazily, nothing is sent to the server yet.
+     */
+    static DBCollection connect(final MongoURI mongoUri, final String collectionName) throws UnknownHostException
+    {
+        return mongoUri.connectDB().getCollection(collectionName);
+    }
+
+    /**
+     * Returns a collection on a new connection to the server, or null if the server can not be reached. The driver
+     * connects lazily, so the server is pinged to find out whether it is reachable.
+     */
+    @CheckForNull
+    static DBCollection connectAndPing(final MongoURI mongoUri, final String collectionName)
+    {
+        DBCollection collection = null;
+        try {
+            collection = connect(mongoUri, collectionName);
+            collection.getDB().command(PING_COMMAND).throwOnError();
+            return collection;
+        }
+        catch (UnknownHostException uhe) {
+            LOG.errorDebug(uhe, "Could not connect to mongo URI %s", mongoUri);
+        }
+        catch (MongoException me) {
+            LOG.debug(me, "Could not connect to mongo URI %s", mongoUri);
+            close(collection);
+        }
+        return null;
+    }
+
+    /**
+     * Closes the connection of a collection returned by {@link #connect(MongoURI, String)}.
+     */
+    static void close(@Nullable final DBCollection collection)
+    {
+        if (collection != null) {
+            collection.getDB().getMongo().close();
+        }
+    }
+
+    /**
+     * Wait time between connection attempts, doubles with every failed attempt. Not thread safe, only used by the
+     * thread that connects.
+     */
+    static final class Backoff
+    {
+        private final TimeSpan min;
+        private final TimeSpan max;
+        private long waitMillis;
+
+        Backoff(final TimeSpan min, final TimeSpan max)
+        {
+            this.min = min;
+            this.max = max;
+            this.waitMillis = min.getMillis();
+        }
+
+        /**
+         * Returns the time to wait before the next attempt.
+         */
+        long next()
+        {
+            final long currentWaitMillis = waitMillis;
+            waitMillis = Math.min(waitMillis * 2L, max.getMillis());
+            return currentWaitMillis;
+        }
+
+        void reset()
+        {
+            waitMillis = min.getMillis();
+        }
+    }
+}
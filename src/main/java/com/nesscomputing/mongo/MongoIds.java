@@ -0,0 +1,43 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+/**
+ * Helpers for document ids.
+ */
+final class MongoIds
+{
+    private MongoIds()
+    {
+    }
+
+    /**
+     * Returns a key that is equal for ids that the server considers equal. Numbers are compared by value, so
+     * 5, 5L and 5.0d match.
+     */
+    static Object matchKey(final Object id)
+    {
+        if (id instanceof Double || id instanceof Float) {
+            final double value = ((Number) id).doubleValue();
+            final long longValue = (long) value;
+            return longValue == value ? (Object) Long.valueOf(longValue) : (Object) Double.valueOf(value);
+        }
+        if (id instanceof Integer || id instanceof Long || id instanceof Short || id instanceof Byte) {
+            return ((Number) id).longValue();
+        }
+        return id;
+    }
+}
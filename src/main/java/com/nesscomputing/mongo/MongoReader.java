@@ -0,0 +1,280 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import java.net.UnknownHostException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nullable;
+
+import org.weakref.jmx.Managed;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.nesscomputing.logging.Log;
+
+/**
+ * Read large result sets from a Mongo collection. A background thread runs the cursor and fetches the documents ahead
+ * of the consumer into a bounded buffer, so processing the documents and fetching the next batch overlap.
+ */
+public class MongoReader
+{
+    private static final Log LOG = Log.findLog();
+
+    private final MongoReaderConfig mongoReaderConfig;
+    private final String collectionName;
+    private final FieldAliases fieldAliases;
+
+    private final AtomicReference<DBCollection> dbCollection = new AtomicReference<DBCollection>(null);
+
+    /** Runs the prefetch threads, one per open stream. Guarded by this. */
+    private ExecutorService prefetchExecutor = null;
+
+    private final AtomicLong queries = new AtomicLong(0L);
+    private final AtomicLong queryErrors = new AtomicLong(0L);
+    private final AtomicInteger openStreams = new AtomicInteger(0);
+    private final StripedCounter docsFetched = new StripedCounter();
+    private final StripedCounter docsRead = new StripedCounter();
+    private final AtomicLong fetchNanos = new AtomicLong(0L);
+    private final AtomicLong firstResultNanos = new AtomicLong(0L);
+    private final AtomicLong maxFirstResultNanos = new AtomicLong(0L);
+    private final AtomicLong consumerWaitNanos = new AtomicLong(0L);
+    private final AtomicLong producerWaitNanos = new AtomicLong(0L);
+
+    MongoReader(final MongoReaderConfig mongoReaderConfig)
+    {
+        this(mongoReaderConfig, FieldAliases.NONE);
+    }
+
+    MongoReader(final MongoReaderConfig mongoReaderConfig, final FieldAliases fieldAliases)
+    {
+        Preconditions.checkNotNull(fieldAliases, "field aliases must not be null!");
+        Preconditions.checkArgument(mongoReaderConfig.getBatchSize() > 0, "batch size must be positive!");
+        Preconditions.checkArgument(mongoReaderConfig.getPrefetchSize() > 0, "prefetch size must be positive!");
+
+        this.mongoReaderConfig = mongoReaderConfig;
+        this.collectionName = mongoReaderConfig.getCollectionName();
+        this.fieldAliases = fieldAliases;
+    }
+
+    synchronized void start()
+    {
+        Preconditions.checkState(prefetchExecutor == null, "already started, boldly refusing to start twice!");
+
+        LOG.info("Starting Mongo Reader for collection %s.", collectionName);
+
+        final DBCollection collection;
+        try {
+            collection = MongoConnections.connect(mongoReaderConfig.getMongoUri(), collectionName);
+        }
+        catch (UnknownHostException uhe) {
+            throw Throwables.propagate(uhe);
+        }
+        if (!fieldAliases.isEmpty()) {
+            collection.setDBDecoderFactory(fieldAliases.getDecoderFactory());
+        }
+        dbCollection.set(collection);
+
+        final ThreadFactoryBuilder threadFactoryBuilder = new ThreadFactoryBuilder().setDaemon(true);
+        threadFactoryBuilder.setNameFormat(String.format("mongo-%s-reader-%%d", collectionName));
+        prefetchExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                                                  mongoReaderConfig.getThreadKeepAlive().getMillis(), TimeUnit.MILLISECONDS,
+                                                  new SynchronousQueue<Runnable>(),
+                                                  threadFactoryBuilder.build());
+    }
+
+    synchronized void stop()
+    {
+        if (prefetchExecutor != null) {
+            LOG.info("Stopping Mongo Reader for collection %s.", collectionName);
+
+            // Interrupts the prefetch threads, open streams end with an exception.
+            prefetchExecutor.shutdownNow();
+            prefetchExecutor = null;
+            MongoConnections.close(dbCollection.getAndSet(null));
+        }
+    }
+
+    /**
+     * Stream all documents that match a query.
+     */
+    public MongoReaderStream find(final DBObject query)
+    {
+        return find(query, null);
+    }
+
+    /**
+     * Stream all documents that match a query. Only the given fields are returned, null returns all fields.
+     */
+    public MongoReaderStream find(final DBObject query, @Nullable final DBObject fields)
+    {
+        final DBCollection collection = dbCollection.get();
+        Preconditions.checkState(collection != null, "Mongo reader for %s is not started!", collectionName);
+
+        return stream(collection.find(query, fields).batchSize(mongoReaderConfig.getBatchSize()));
+    }
+
+    /**
+     * Stream the documents of a cursor, e.g. after applying a sort or a limit. The cursor must come from the
+     * collection of this reader and must not be used by the caller anymore.
+     */
+    public synchronized MongoReaderStream stream(final DBCursor cursor)
+    {
+        Preconditions.checkState(prefetchExecutor != null, "Mongo reader for %s is not started!", collectionName);
+
+        final MongoReaderStream stream = new MongoReaderStream(this, cursor, mongoReaderConfig.getPrefetchSize());
+        queries.incrementAndGet();
+        openStreams.incrementAndGet();
+        prefetchExecutor.execute(stream.getPrefetcher());
+        return stream;
+    }
+
+    String getCollectionName()
+    {
+        return collectionName;
+    }
+
+    void firstResult(final long nanos)
+    {
+        firstResultNanos.addAndGet(nanos);
+
+        long current = maxFirstResultNanos.get();
+        while (nanos > current && !maxFirstResultNanos.compareAndSet(current, nanos)) {
+            current = maxFirstResultNanos.get();
+        }
+    }
+
+    void fetched(final long nanos)
+    {
+        docsFetched.increment();
+        fetchNanos.addAndGet(nanos);
+    }
+
+    void read()
+    {
+        docsRead.increment();
+    }
+
+    void queryError()
+    {
+        queryErrors.incrementAndGet();
+    }
+
+    void producerWait(final long nanos)
+    {
+        producerWaitNanos.addAndGet(nanos);
+    }
+
+    void consumerWait(final long nanos)
+    {
+        consumerWaitNanos.addAndGet(nanos);
+    }
+
+    void streamClosed()
+    {
+        openStreams.decrementAndGet();
+    }
+
+    @Managed
+    public long getQueries()
+    {
+        return queries.get();
+    }
+
+    @Managed
+    public long getQueryErrors()
+    {
+        return queryErrors.get();
+    }
+
+    @Managed
+    public int getOpenStreams()
+    {
+        return openStreams.get();
+    }
+
+    @Managed
+    public long getDocsFetched()
+    {
+        return docsFetched.get();
+    }
+
+    @Managed
+    public long getDocsRead()
+    {
+        return docsRead.get();
+    }
+
+    /**
+     * Documents fetched per second of time spent waiting for the server.
+     */
+    @Managed
+    public long getFetchRate()
+    {
+        final long nanos = fetchNanos.get();
+        return nanos == 0L ? 0L : docsFetched.get() * TimeUnit.SECONDS.toNanos(1L) / nanos;
+    }
+
+    @Managed
+    public long getFetchTimeMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(fetchNanos.get());
+    }
+
+    /**
+     * Average time from starting a query until the first result arrived.
+     */
+    @Managed
+    public long getAvgFirstResultMillis()
+    {
+        final long count = queries.get();
+        return count == 0L ? 0L : TimeUnit.NANOSECONDS.toMillis(firstResultNanos.get() / count);
+    }
+
+    @Managed
+    public long getMaxFirstResultMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(maxFirstResultNanos.get());
+    }
+
+    /**
+     * Time that consumers waited for documents. Grows if the server can not keep up with the consumers.
+     */
+    @Managed
+    public long getConsumerWaitMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(consumerWaitNanos.get());
+    }
+
+    /**
+     * Time that the prefetch threads waited for space in the buffer. Grows if the consumers are slower than the server.
+     */
+    @Managed
+    public long getProducerWaitMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(producerWaitNanos.get());
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import org.skife.config.Config;
+import org.skife.config.Default;
+import org.skife.config.TimeSpan;
+
+import com.mongodb.MongoURI;
+
+/**
+ * Configure a Mongo reader for a Mongo collection.
+ */
+public abstract class MongoReaderConfig
+{
+    /**
+     * Number of documents that the server returns per round-trip.
+     */
+    @Config({"ness.mongo.reader.${readername}.batch-size","ness.mongo.reader.batch-size"})
+    @Default("500")
+    public int getBatchSize()
+    {
+        return 500;
+    }
+
+    /**
+     * Number of documents that are fetched ahead of the consumer. The background thread stops fetching when
+     * the buffer is full and continues when the consumer catches up.
+     */
+    @Config({"ness.mongo.reader.${readername}.prefetch-size","ness.mongo.reader.prefetch-size"})
+    @Default("1000")
+    public int getPrefetchSize()
+    {
+        return 1000;
+    }
+
+    /**
+     * Time after which an idle prefetch thread exits.
+     */
+    @Config({"ness.mongo.reader.${readername}.thread-keepalive","ness.mongo.reader.thread-keepalive"})
+    @Default("60s")
+    public TimeSpan getThreadKeepAlive()
+    {
+        return new TimeSpan("60s");
+    }
+
+    /**
+     * The Mongo DB Server to connect to.
+     */
+    @Config({"ness.mongo.reader.${readername}.uri","ness.mongo.reader.uri"})
+    public abstract MongoURI getMongoUri();
+
+    /**
+     * Name of the collection to read from.
+     */
+    @Config({"ness.mongo.reader.${readername}.collection-name","ness.mongo.reader.collection-name"})
+    public abstract String getCollectionName();
+}
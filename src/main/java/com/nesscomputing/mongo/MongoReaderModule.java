@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import static java.lang.String.format;
+
+import org.apache.commons.lang3.StringUtils;
+import org.weakref.jmx.guice.MBeanModule;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Provider;
+import com.google.inject.Scopes;
+import com.google.inject.name.Named;
+import com.google.inject.name.Names;
+import com.nesscomputing.config.ConfigProvider;
+import com.nesscomputing.lifecycle.LifecycleStage;
+import com.nesscomputing.lifecycle.guice.AbstractLifecycleProvider;
+import com.nesscomputing.lifecycle.guice.LifecycleAction;
+/**
+ * Defines a new Mongo reader. Multiple modules can be installed for reading from multiple collections.
+ */
+public class MongoReaderModule extends AbstractModule
+{
+    private final String readerName;
+
+    public MongoReaderModule(final String readerName)
+    {
+        Preconditions.checkState(!StringUtils.isBlank(readerName), "Reader name must not be blank!");
+
+        this.readerName = readerName;
+    }
+
+    @Override
+    protected void configure()
+    {
+        final Named named = Names.named(readerName);
+        bind(MongoReaderConfig.class).annotatedWith(named).toProvider(ConfigProvider.of(MongoReaderConfig.class, ImmutableMap.of("readername", readerName))).in(Scopes.SINGLETON);
+        bind(MongoReader.class).annotatedWith(named).toProvider(new MongoReaderProvider(named)).asEagerSingleton();
+
+        install(new MBeanModule() {
+            @Override
+            public void configureMBeans() {
+                export(MongoReader.class).annotatedWith(named).as(format("ness.mongo.reader:name=%s", readerName));
+            }
+        });
+    }
+
+    public static class MongoReaderProvider extends AbstractLifecycleProvider<MongoReader> implements Provider<MongoReader>
+    {
+        private final Named named;
+        private MongoReaderConfig readerConfig = null;
+        private FieldAliases fieldAliases = FieldAliases.NONE;
+
+        private MongoReaderProvider(final Named named)
+        {
+            this.named = named;
+
+            addAction(LifecycleStage.START_STAGE, new LifecycleAction<MongoReader>() {
+                    @Override
+                    public void performAction(final MongoReader mongoReader) {
+                        mongoReader.start();
+                    }
+                });
+
+            addAction(LifecycleStage.STOP_STAGE, new LifecycleAction<MongoReader>() {
+                    @Override
+                    public void performAction(final MongoReader mongoReader) {
+                        mongoReader.stop();
+                    }
+                });
+        }
+
+        @Inject
+        void setInjector(final Injector injector)
+        {
+            this.readerConfig = injector.getInstance(Key.get(MongoReaderConfig.class, named));
+            this.fieldAliases = FieldAliasBinder.getFieldAliases(injector, readerConfig.getCollectionName());
+        }
+
+        @Override
+        public MongoReader internalGet()
+        {
+            Preconditions.checkState(readerConfig != null, "no readerConfig was injected!");
+            return new MongoReader(readerConfig, fieldAliases);
+        }
+    }
+}
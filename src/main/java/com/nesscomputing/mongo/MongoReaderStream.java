@@ -0,0 +1,241 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.base.Throwables;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.nesscomputing.logging.Log;
+
+/**
+ * Documents of a query, fetched ahead by a background thread. Not thread safe, a stream must be consumed by a single
+ * thread. Close the stream when not reading it to the end, this stops the background thread and the cursor.
+ */
+public final class MongoReaderStream implements Iterator<DBObject>, Closeable
+{
+    private static final Log LOG = Log.findLog();
+
+    /** Marks the end of the results in the buffer. */
+    private static final Object END = new Object();
+
+    /** Interval to check whether the other side has gone away while waiting on the buffer. */
+    private static final long POLL_MILLIS = 100L;
+
+    private final MongoReader reader;
+    private final DBCursor cursor;
+    private final BlockingQueue<Object> buffer;
+
+    private volatile boolean closed = false;
+    private volatile boolean prefetchDone = false;
+    private volatile RuntimeException error = null;
+
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+
+    /** Consumer side. */
+    private DBObject next = null;
+    private boolean exhausted = false;
+
+    MongoReaderStream(final MongoReader reader, final DBCursor cursor, final int prefetchSize)
+    {
+        this.reader = reader;
+        this.cursor = cursor;
+        this.buffer = new ArrayBlockingQueue<Object>(prefetchSize);
+    }
+
+    Runnable getPrefetcher()
+    {
+        return new Runnable() {
+            @Override
+            public void run() {
+                prefetch();
+            }
+        };
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        if (next != null) {
+            return true;
+        }
+        if (exhausted) {
+            return false;
+        }
+
+        Object element = buffer.poll();
+        if (element == null) {
+            final long startTime = System.nanoTime();
+            try {
+                element = take();
+            }
+            finally {
+                reader.consumerWait(System.nanoTime() - startTime);
+            }
+        }
+
+        if (element == END) {
+            exhausted = true;
+            finish();
+            final RuntimeException error = this.error;
+            if (error != null) {
+                throw error;
+            }
+            return false;
+        }
+
+        next = (DBObject) element;
+        return true;
+    }
+
+    @Override
+    public DBObject next()
+    {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final DBObject result = next;
+        next = null;
+        reader.read();
+        return result;
+    }
+
+    @Override
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Stop reading. The background thread stops fetching and closes the cursor.
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+        exhausted = true;
+        next = null;
+        buffer.clear();
+        finish();
+    }
+
+    private Object take()
+    {
+        try {
+            while (true) {
+                final Object element = buffer.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (element != null) {
+                    return element;
+                }
+                if (prefetchDone) {
+                    // The prefetch thread was stopped before it could mark the end.
+                    final Object last = buffer.poll();
+                    return last == null ? END : last;
+                }
+            }
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            close();
+            throw Throwables.propagate(ie);
+        }
+    }
+
+    private void finish()
+    {
+        if (finished.compareAndSet(false, true)) {
+            reader.streamClosed();
+        }
+    }
+
+    private void prefetch()
+    {
+        try {
+            boolean first = true;
+            while (!closed) {
+                final long startTime = System.nanoTime();
+                if (!cursor.hasNext()) {
+                    if (first) {
+                        reader.firstResult(System.nanoTime() - startTime);
+                    }
+                    break;
+                }
+                final DBObject dbObject = cursor.next();
+                final long nanos = System.nanoTime() - startTime;
+                if (first) {
+                    reader.firstResult(nanos);
+                    first = false;
+                }
+                reader.fetched(nanos);
+
+                if (!put(dbObject)) {
+                    break;
+                }
+            }
+        }
+        catch (RuntimeException re) {
+            LOG.warn(re, "Could not read from %s", reader.getCollectionName());
+            reader.queryError();
+            error = re;
+        }
+        finally {
+            try {
+                cursor.close();
+            }
+            catch (RuntimeException re) {
+                LOG.debug(re, "Could not close cursor");
+            }
+            put(END);
+            prefetchDone = true;
+        }
+    }
+
+    /**
+     * Wait for space in the buffer. Returns false if the stream was closed or the reader was stopped.
+     */
+    private boolean put(final Object element)
+    {
+        if (buffer.offer(element)) {
+            return true;
+        }
+
+        final long startTime = System.nanoTime();
+        try {
+            while (!closed) {
+                if (buffer.offer(element, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        }
+        catch (InterruptedException ie) {
+            if (error == null) {
+                error = new IllegalStateException("Mongo reader was stopped!");
+            }
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            reader.producerWait(System.nanoTime() - startTime);
+        }
+        return false;
+    }
+}
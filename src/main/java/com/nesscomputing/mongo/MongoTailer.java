@@ -0,0 +1,327 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.weakref.jmx.Managed;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.nesscomputing.logging.Log;
+
+/**
+ * Follows a capped collection with a tailable, await-data cursor and hands every new document to a handler. The
+ * handler runs on a bounded pool of threads. After losing the cursor, the tailer continues after the last document
+ * that it has seen.
+ *
+ * Resuming assumes that the resume field grows in insert order. The default, _id, only does so roughly when the
+ * ObjectIds are created by several clients, see {@link MongoTailerConfig#getResumeField()}.
+ */
+public class MongoTailer implements Runnable
+{
+    private static final Log LOG = Log.findLog();
+
+    /** Time that stop() waits for the tailer thread and the handlers to finish. */
+    private static final long STOP_WAIT_MILLIS = 1000L;
+
+    private final MongoTailerConfig mongoTailerConfig;
+    private final String collectionName;
+    private final String resumeField;
+    /** The resume field as it is stored, the query is not encoded with the aliases. */
+    private final String storedResumeField;
+    private final MongoTailerHandler handler;
+    private final FieldAliases fieldAliases;
+
+    /** Limits the number of documents waiting for a handler thread. */
+    private final Semaphore handlerPermits;
+
+    /** Runs the handler, created on start. */
+    private ExecutorService handlerExecutor = null;
+
+    private final AtomicBoolean taskRunning = new AtomicBoolean(true);
+    private final AtomicBoolean tailerStarted = new AtomicBoolean(false);
+
+    /** Released to wake up the tailer thread when it should stop. */
+    private final CountDownLatch stopSignal = new CountDownLatch(1);
+
+    /** Released when the tailer thread has exited. */
+    private final CountDownLatch tailerDone = new CountDownLatch(1);
+
+    private final AtomicReference<DBCollection> dbCollection = new AtomicReference<DBCollection>(null);
+    private volatile ConnectionState connectionState = ConnectionState.DISCONNECTED;
+
+    /** Value of the resume field of the last document read, null if none was read yet. */
+    private volatile Object lastPosition = null;
+
+    private final AtomicLong docsReceived = new AtomicLong(0L);
+    private final AtomicLong docsHandled = new AtomicLong(0L);
+    private final AtomicLong handlerErrors = new AtomicLong(0L);
+    private final AtomicLong cursorsOpened = new AtomicLong(0L);
+    private final AtomicLong cursorsLost = new AtomicLong(0L);
+    private final AtomicLong connectFailures = new AtomicLong(0L);
+
+    MongoTailer(final MongoTailerConfig mongoTailerConfig, final MongoTailerHandler handler)
+    {
+        this(mongoTailerConfig, handler, FieldAliases.NONE);
+    }
+
+    MongoTailer(final MongoTailerConfig mongoTailerConfig, final MongoTailerHandler handler, final FieldAliases fieldAliases)
+    {
+        Preconditions.checkNotNull(handler, "handler must not be null!");
+        Preconditions.checkNotNull(fieldAliases, "field aliases must not be null!");
+        Preconditions.checkArgument(mongoTailerConfig.getHandlerThreads() > 0, "handler threads must be positive!");
+        Preconditions.checkArgument(mongoTailerConfig.getHandlerQueueLength() > 0, "handler queue length must be positive!");
+
+        this.mongoTailerConfig = mongoTailerConfig;
+        this.collectionName = mongoTailerConfig.getCollectionName();
+        this.resumeField = mongoTailerConfig.getResumeField();
+        this.storedResumeField = fieldAliases.compact(resumeField);
+        this.handler = handler;
+        this.fieldAliases = fieldAliases;
+        this.handlerPermits = new Semaphore(mongoTailerConfig.getHandlerQueueLength());
+    }
+
+    synchronized void start()
+    {
+        if (mongoTailerConfig.isEnabled()) {
+            Preconditions.checkState(!tailerStarted.get(), "already started, boldly refusing to start twice!");
+
+            LOG.info("Starting Mongo Tailer for collection %s.", collectionName);
+
+            final int handlerThreads = mongoTailerConfig.getHandlerThreads();
+            final ThreadFactoryBuilder threadFactoryBuilder = new ThreadFactoryBuilder().setDaemon(true);
+            threadFactoryBuilder.setNameFormat(String.format("mongo-%s-handler-%%d", collectionName));
+            handlerExecutor = new ThreadPoolExecutor(handlerThreads, handlerThreads, 0L, TimeUnit.MILLISECONDS,
+                                                     new LinkedBlockingQueue<Runnable>(),
+                                                     threadFactoryBuilder.build());
+
+            MongoThreads.threadPerTask(MongoThreads.platformThreadFactory(String.format("mongo-%s-tailer", collectionName))).execute(this);
+            tailerStarted.set(true);
+        }
+    }
+
+    synchronized void stop()
+    {
+        if (tailerStarted.getAndSet(false)) {
+            LOG.info("Stopping Mongo Tailer for collection %s.", collectionName);
+            try {
+                taskRunning.set(false);
+                stopSignal.countDown();
+                // Closing the connection wakes up the tailer thread if it waits for data.
+                disconnect();
+                tailerDone.await(STOP_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+
+                handlerExecutor.shutdown();
+                if (!handlerExecutor.awaitTermination(STOP_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    LOG.warn("Handlers for %s did not finish, %d documents were not handled!", collectionName, handlerExecutor.shutdownNow().size());
+                }
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        } else {
+            LOG.debug("Never started, ignoring stop()");
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        LOG.info("Mongo tailer for %s starting...", collectionName);
+
+        final MongoConnections.Backoff connectBackoff = new MongoConnections.Backoff(mongoTailerConfig.getConnectBackoffMin(), mongoTailerConfig.getConnectBackoffMax());
+        try {
+            while (taskRunning.get()) {
+                if (dbCollection.get() == null) {
+                    if (!connect()) {
+                        final long waitMillis = connectBackoff.next();
+                        LOG.warn("Could not connect to %s, retrying in %d ms", mongoTailerConfig.getMongoUri(), waitMillis);
+                        stopSignal.await(waitMillis, TimeUnit.MILLISECONDS);
+                        continue;
+                    }
+                    connectBackoff.reset();
+                }
+
+                try {
+                    tail();
+                    // The server closed the cursor, e.g. because the collection is empty.
+                    stopSignal.await(mongoTailerConfig.getRestartDelay().getMillis(), TimeUnit.MILLISECONDS);
+                }
+                catch (RuntimeException re) {
+                    // Also thrown when stop() closes the connection under the cursor.
+                    if (taskRunning.get()) {
+                        LOG.warn(re, "Lost cursor on %s, resuming after %s", collectionName, lastPosition);
+                        cursorsLost.incrementAndGet();
+                        disconnect();
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            disconnect();
+            tailerDone.countDown();
+        }
+        LOG.info("Exiting");
+    }
+
+    /**
+     * Read from a new cursor until the server closes it.
+     */
+    private void tail() throws InterruptedException
+    {
+        final DBCollection collection = dbCollection.get();
+        if (collection == null) {
+            return;
+        }
+
+        final Object position = lastPosition;
+        final DBObject query = position == null ? new BasicDBObject() : new BasicDBObject(storedResumeField, new BasicDBObject("$gt", position));
+        final DBCursor cursor = collection.find(query).addOption(Bytes.QUERYOPTION_TAILABLE).addOption(Bytes.QUERYOPTION_AWAITDATA);
+        cursorsOpened.incrementAndGet();
+        try {
+            while (taskRunning.get() && cursor.hasNext()) {
+                final DBObject dbObject = cursor.next();
+                docsReceived.incrementAndGet();
+                lastPosition = dbObject.get(resumeField);
+                dispatch(dbObject);
+            }
+        }
+        finally {
+            cursor.close();
+        }
+    }
+
+    private void dispatch(final DBObject dbObject) throws InterruptedException
+    {
+        handlerPermits.acquire();
+        handlerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handler.handle(dbObject);
+                    docsHandled.incrementAndGet();
+                }
+                catch (Exception e) {
+                    LOG.warn(e, "Handler for %s failed", collectionName);
+                    handlerErrors.incrementAndGet();
+                }
+                finally {
+                    handlerPermits.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Connect to the server. The driver connects lazily, so ping the server to find out whether it is reachable.
+     */
+    private boolean connect()
+    {
+        connectionState = ConnectionState.CONNECTING;
+        final DBCollection collection = MongoConnections.connectAndPing(mongoTailerConfig.getMongoUri(), collectionName);
+        if (collection == null) {
+            connectFailures.incrementAndGet();
+            connectionState = ConnectionState.DISCONNECTED;
+            return false;
+        }
+
+        if (!fieldAliases.isEmpty()) {
+            collection.setDBDecoderFactory(fieldAliases.getDecoderFactory());
+        }
+        dbCollection.set(collection);
+        connectionState = ConnectionState.CONNECTED;
+        LOG.info("Mongo tailer for %s connected to %s.", collectionName, mongoTailerConfig.getMongoUri());
+        return true;
+    }
+
+    private void disconnect()
+    {
+        connectionState = ConnectionState.DISCONNECTED;
+        MongoConnections.close(dbCollection.getAndSet(null));
+    }
+
+    @Managed
+    public long getDocsReceived()
+    {
+        return docsReceived.get();
+    }
+
+    @Managed
+    public long getDocsHandled()
+    {
+        return docsHandled.get();
+    }
+
+    @Managed
+    public long getHandlerErrors()
+    {
+        return handlerErrors.get();
+    }
+
+    @Managed
+    public int getHandlerQueueLength()
+    {
+        return mongoTailerConfig.getHandlerQueueLength() - handlerPermits.availablePermits();
+    }
+
+    @Managed
+    public long getCursorsOpened()
+    {
+        return cursorsOpened.get();
+    }
+
+    @Managed
+    public long getCursorsLost()
+    {
+        return cursorsLost.get();
+    }
+
+    @Managed
+    public long getConnectFailures()
+    {
+        return connectFailures.get();
+    }
+
+    @Managed
+    public String getConnectionState()
+    {
+        return connectionState.name();
+    }
+
+    @Managed
+    public String getLastPosition()
+    {
+        final Object position = lastPosition;
+        return position == null ? null : position.toString();
+    }
+}
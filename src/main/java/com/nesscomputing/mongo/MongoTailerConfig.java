@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import org.skife.config.Config;
+import org.skife.config.Default;
+import org.skife.config.TimeSpan;
+
+import com.mongodb.MongoURI;
+
+/**
+ * Configure a Mongo tailer that follows a capped collection.
+ */
+public abstract class MongoTailerConfig
+{
+    /**
+     * Enable / disable the tailer.
+     */
+    @Config({"ness.mongo.tailer.${tailername}.enabled","ness.mongo.tailer.enabled"})
+    @Default("false")
+    public boolean isEnabled()
+    {
+        return false;
+    }
+
+    /**
+     * Number of threads that run the handler. With more than one thread, documents can be handled out of order.
+     */
+    @Config({"ness.mongo.tailer.${tailername}.handler-threads","ness.mongo.tailer.handler-threads"})
+    @Default("1")
+    public int getHandlerThreads()
+    {
+        return 1;
+    }
+
+    /**
+     * Maximum number of documents waiting for a handler thread. Reading from the collection pauses when the
+     * queue is full.
+     */
+    @Config({"ness.mongo.tailer.${tailername}.handler-queue-length","ness.mongo.tailer.handler-queue-length"})
+    @Default("1000")
+    public int getHandlerQueueLength()
+    {
+        return 1000;
+    }
+
+    /**
+     * Field that increases with every document, used to resume after the cursor was lost. Documents with a value
+     * greater than the last one seen are read after reconnecting.
+     *
+     * ObjectIds created by the clients are only roughly ordered across processes and hosts: they start with a
+     * timestamp in seconds and the clocks of the hosts differ. With the default, a document that was inserted after
+     * the last one seen but has a smaller id is skipped when the tailer resumes. Use a field that the writers fill
+     * from a single monotonic source, e.g. ts in an oplog-like collection, when no document may be missed.
+     */
+    @Config({"ness.mongo.tailer.${tailername}.resume-field","ness.mongo.tailer.resume-field"})
+    @Default("_id")
+    public String getResumeField()
+    {
+        return "_id";
+    }
+
+    /**
+     * Time to wait before opening a new cursor when the server closed the cursor, e.g. because the collection is empty.
+     */
+    @Config({"ness.mongo.tailer.${tailername}.restart-delay","ness.mongo.tailer.restart-delay"})
+    @Default("1s")
+    public TimeSpan getRestartDelay()
+    {
+        return new TimeSpan("1s");
+    }
+
+    /**
+     * Initial wait time before reconnecting after an error. The wait time doubles with every failed attempt up to
+     * the maximum below.
+     */
+    @Config({"ness.mongo.tailer.${tailername}.connect-backoff-min","ness.mongo.tailer.connect-backoff-min"})
+    @Default("100ms")
+    public TimeSpan getConnectBackoffMin()
+    {
+        return new TimeSpan("100ms");
+    }
+
+    /**
+     * Maximum wait time between two connection attempts.
+     */
+    @Config({"ness.mongo.tailer.${tailername}.connect-backoff-max","ness.mongo.tailer.connect-backoff-max"})
+    @Default("30s")
+    public TimeSpan getConnectBackoffMax()
+    {
+        return new TimeSpan("30s");
+    }
+
+    /**
+     * The Mongo DB Server to connect to.
+     */
+    @Config({"ness.mongo.tailer.${tailername}.uri","ness.mongo.tailer.uri"})
+    public abstract MongoURI getMongoUri();
+
+    /**
+     * Name of the capped collection to follow.
+     */
+    @Config({"ness.mongo.tailer.${tailername}.collection-name","ness.mongo.tailer.collection-name"})
+    public abstract String getCollectionName();
+}
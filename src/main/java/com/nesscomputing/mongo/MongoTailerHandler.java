@@ -0,0 +1,30 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import com.mongodb.DBObject;
+
+/**
+ * Receives the documents read by a MongoTailer. Called on the handler threads of the tailer, so it must be thread
+ * safe if the tailer uses more than one handler thread.
+ */
+public interface MongoTailerHandler
+{
+    /**
+     * Handle a document. Exceptions are logged and counted, the tailer continues with the next document.
+     */
+    void handle(DBObject document) throws Exception;
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import static java.lang.String.format;
+
+import org.apache.commons.lang3.StringUtils;
+import org.weakref.jmx.guice.MBeanModule;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.inject.AbstractModule;
+import com.google.inject.Binder;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Provider;
+import com.google.inject.Scopes;
+import com.google.inject.binder.LinkedBindingBuilder;
+import com.google.inject.name.Named;
+import com.google.inject.name.Names;
+import com.nesscomputing.config.ConfigProvider;
+import com.nesscomputing.lifecycle.LifecycleStage;
+import com.nesscomputing.lifecycle.guice.AbstractLifecycleProvider;
+import com.nesscomputing.lifecycle.guice.LifecycleAction;
+/**
+ * Defines a new Mongo tailer. Multiple modules can be installed for following multiple collections.
+ */
+public class MongoTailerModule extends AbstractModule
+{
+    private final String tailerName;
+
+    public MongoTailerModule(final String tailerName)
+    {
+        Preconditions.checkState(!StringUtils.isBlank(tailerName), "Tailer name must not be blank!");
+
+        this.tailerName = tailerName;
+    }
+
+    @Override
+    protected void configure()
+    {
+        final Named named = Names.named(tailerName);
+        bind(MongoTailerConfig.class).annotatedWith(named).toProvider(ConfigProvider.of(MongoTailerConfig.class, ImmutableMap.of("tailername", tailerName))).in(Scopes.SINGLETON);
+        bind(MongoTailer.class).annotatedWith(named).toProvider(new MongoTailerProvider(named)).asEagerSingleton();
+
+        install(new MBeanModule() {
+            @Override
+            public void configureMBeans() {
+                export(MongoTailer.class).annotatedWith(named).as(format("ness.mongo.tailer:name=%s", tailerName));
+            }
+        });
+    }
+
+    /**
+     * Bind the handler that receives the documents of the named tailer. Every tailer needs a handler.
+     */
+    public static LinkedBindingBuilder<MongoTailerHandler> bindHandler(final Binder binder, final String tailerName)
+    {
+        return binder.bind(MongoTailerHandler.class).annotatedWith(Names.named(tailerName));
+    }
+
+    public static class MongoTailerProvider extends AbstractLifecycleProvider<MongoTailer> implements Provider<MongoTailer>
+    {
+        private final Named named;
+        private MongoTailerConfig tailerConfig = null;
+        private MongoTailerHandler handler = null;
+        private FieldAliases fieldAliases = FieldAliases.NONE;
+
+        private MongoTailerProvider(final Named named)
+        {
+            this.named = named;
+
+            addAction(LifecycleStage.START_STAGE, new LifecycleAction<MongoTailer>() {
+                    @Override
+                    public void performAction(final MongoTailer mongoTailer) {
+                        mongoTailer.start();
+                    }
+                });
+
+            addAction(LifecycleStage.STOP_STAGE, new LifecycleAction<MongoTailer>() {
+                    @Override
+                    public void performAction(final MongoTailer mongoTailer) {
+                        mongoTailer.stop();
+                    }
+                });
+        }
+
+        @Inject
+        void setInjector(final Injector injector)
+        {
+            this.tailerConfig = injector.getInstance(Key.get(MongoTailerConfig.class, named));
+            this.handler = injector.getInstance(Key.get(MongoTailerHandler.class, named));
+            this.fieldAliases = FieldAliasBinder.getFieldAliases(injector, tailerConfig.getCollectionName());
+        }
+
+        @Override
+        public MongoTailer internalGet()
+        {
+            Preconditions.checkState(tailerConfig != null, "no tailerConfig was injected!");
+            Preconditions.checkState(handler != null, "no handler was injected!");
+            return new MongoTailer(tailerConfig, handler, fieldAliases);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
+import javax.annotation.CheckForNull;
+
+import com.google.common.base.Preconditions;
+import com.nesscomputing.logging.Log;
+
+/**
+ * Thread and executor helpers for the threads that run the writer, tailer and other background loops.
+ */
+final class MongoThreads
+{
+    private static final Log LOG = Log.findLog();
+
+    private MongoThreads()
+    {
+    }
+
+    /**
+     * Returns an executor that starts a new thread from the thread factory for every task.
+     */
+    static Executor threadPerTask(final ThreadFactory threadFactory)
+    {
+        Preconditions.checkNotNull(threadFactory, "thread factory must not be null!");
+
+        return new Executor() {
+            @Override
+            public void execute(final Runnable runnable) {
+                threadFactory.newThread(runnable).start();
+            }
+        };
+    }
+
+    /**
+     * Returns a thread factory for named platform threads.
+     */
+    static ThreadFactory platformThreadFactory(final String threadName)
+    {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(runnable, threadName);
+            }
+        };
+    }
+
+    /**
+     * Returns a thread factory for named virtual threads or null if the runtime does not support virtual threads.
+     * This code must still run on older runtimes, so the thread builder API is only accessed reflectively.
+     */
+    @CheckForNull
+    static ThreadFactory virtualThreadFactory(final String threadName)
+    {
+        try {
+            final Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            final Object builder = ofVirtual.invoke(null);
+            final Method name = ofVirtual.getReturnType().getMethod("name", String.class);
+            final Object namedBuilder = name.invoke(builder, threadName);
+            final Method factory = ofVirtual.getReturnType().getMethod("factory");
+            return (ThreadFactory) factory.invoke(namedBuilder);
+        }
+        catch (NoSuchMethodException nsme) {
+            return null;
+        }
+        catch (Exception e) {
+            LOG.debug(e, "Could not create virtual thread factory");
+            return null;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import org.skife.config.TimeSpan;
+
+import com.mongodb.DBEncoder;
+import com.mongodb.DBObject;
+
+/**
+ * Buffers pending writes between the producer threads and the writer thread.
+ */
+interface MongoWriteQueue
+{
+    /**
+     * Enqueue a new element, either a DBObject or a Callable that returns a DBObject. Waits up to timeout for space in
+     * the queue, a null timeout waits until space becomes available.
+     *
+     * @return True if the element was enqueued, false if the timeout elapsed.
+     */
+    boolean offer(Object element, @Nullable TimeSpan timeout) throws InterruptedException;
+
+    /**
+     * Remove all pending elements from the queue and add them to the list. Must only be called from the writer thread.
+     * The elements added are only valid until the next call to drainTo.
+     *
+     * @return The number of elements removed from the queue.
+     */
+    int drainTo(List<Object> drained);
+
+    /**
+     * Returns true if the last call to {@link MongoWriteQueue#drainTo(List)} left elements behind that should be drained
+     * right away. Must only be called from the writer thread.
+     */
+    boolean isDrainPending();
+
+    /**
+     * Returns a new encoder that can write the objects returned by {@link MongoWriteQueue#drainTo(List)} once they are converted.
+     */
+    DBEncoder createEncoder();
+
+    /**
+     * Change the capacity of the queue, in elements or bytes depending on how the queue is bounded. Shrinking the
+     * queue below its current content keeps the content, but blocks producers until enough has been drained.
+     */
+    void setCapacity(int capacity);
+
+    /**
+     * The capacity of the queue, in elements or bytes depending on how the queue is bounded.
+     */
+    int getCapacity();
+
+    /**
+     * Number of elements currently in the queue.
+     */
+    int size();
+
+    /**
+     * Number of bytes currently used by the queue, 0 if the queue does not track memory.
+     */
+    long getBytesUsed();
+
+    /**
+     * Largest number of bytes used by the queue so far, 0 if the queue does not track memory.
+     */
+    long getBytesHighWater();
+}
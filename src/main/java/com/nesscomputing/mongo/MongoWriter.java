@@ -15,29 +15,44 @@
  */
 package com.nesscomputing.mongo;
 
-import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.Nullable;
-
+import javax.management.openmbean.TabularData;
+
+import org.apache.commons.lang3.StringUtils;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.bson.BSONObject;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.io.OutputBuffer;
+import org.bson.types.ObjectId;
 import org.skife.config.TimeSpan;
 import org.weakref.jmx.Managed;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.mongodb.CommandResult;
 import com.mongodb.DBCollection;
+import com.mongodb.DBEncoder;
+import com.mongodb.DBEncoderFactory;
 import com.mongodb.DBObject;
-import com.mongodb.Mongo;
+import com.mongodb.MongoException;
 import com.mongodb.WriteConcern;
 import com.mongodb.WriteResult;
 import com.nesscomputing.logging.Log;
@@ -49,135 +64,275 @@ public class MongoWriter implements Runnable
 {
     private static final Log LOG = Log.findLog();
 
-    private static final Function<Callable<DBObject>, DBObject> CALLABLE_FUNCTION = new Function<Callable<DBObject>, DBObject>() {
-        @Override
-        public DBObject apply(@Nullable final Callable<DBObject> callable) {
-            try {
-                return callable == null ? null : callable.call();
-            }
-            catch (Exception e) {
-                throw Throwables.propagate(e);
-            }
-        }
-    };
+    /** Number of configuration changes kept for auditing. */
+    private static final int MAX_CONFIGURATION_CHANGES = 50;
+
+    /** Number of rows in the conversion profile table. */
+    private static final int MAX_PROFILE_ROWS = 20;
 
     /** Queue of pending writes.  */
-    private final LinkedBlockingQueue<Callable<DBObject>> writeQueue;
+    private final MongoWriteQueue writeQueue;
+
+    /** Elements drained from the queue. Only used by the writer thread and reused between batches. */
+    private final List<Object> drainedElements = Lists.newArrayList();
+
+    /** Converted elements handed to flushToMongo. Only used by the writer thread and reused between batches. */
+    private final List<DBObject> batch = Lists.newArrayList();
 
     private AtomicBoolean taskRunning = new AtomicBoolean(true);
 
     /** Holds a reference to the Mongo event collection that this writer uses. */
     private final AtomicReference<DBCollection> dbCollection = new AtomicReference<DBCollection>(null);
 
+    private volatile ConnectionState connectionState = ConnectionState.DISCONNECTED;
+
+    /** Number of times the current batch was resent. Only used by the writer thread. */
+    private int batchRetries = 0;
+
     private final AtomicLong cooloffTime = new AtomicLong(-1L);
 
-    private final AtomicReference<Thread> writerThread = new AtomicReference<Thread>(null);
+    private final AtomicBoolean writerStarted = new AtomicBoolean(false);
+
+    /** Released to wake up the writer loop when it should stop. */
+    private final CountDownLatch stopSignal = new CountDownLatch(1);
+
+    /** Released when the writer loop has exited. */
+    private final CountDownLatch writerDone = new CountDownLatch(1);
+
+    /** Runs the writer loop, null uses a dedicated thread. */
+    private final Executor executor;
+
+    private final MongoWriterMetricsSink metricsSink;
+
+    private final boolean assignIds;
+    private final boolean continueOnError;
+    private final WriteConcern writeConcern;
+
+    /** Recently written ids, null if duplicates are not filtered. Only used by the writer thread. */
+    private final RecentIdFilter idFilter;
+
+    /** Match keys of the ids in the current batch, they are only added to the id filter once the batch was written. Only used by the writer thread. */
+    private final Set<Object> batchIds = Sets.newHashSet();
+
+    /** Set by flushToMongo if the server reported that the batch could not be written. Only used by the writer thread. */
+    private boolean batchFailed = false;
+
+    /** Samples conversion cost. The off-heap queue converts on enqueue and profiles there, the heap queue is profiled on the writer thread. */
+    private final ConversionProfiler profiler;
+    private final boolean profileOnDrain;
+
+    /** Encoder and buffer to measure the encoded size of sampled objects. Only used by the writer thread, created on first use. */
+    private DBEncoder profileEncoder = null;
+    private BasicOutputBuffer profileBuffer = null;
+
+    /** Share of the memory budget that all writers use together. */
+    private final MongoWriterBudget.Account budgetAccount;
+
+    /** Encoder for the inserts, sizes are recorded for the heap queue. Only used by the writer thread. */
+    private final DBEncoder insertEncoder;
+
+    /**
+     * Objects handed to the driver, reused while the batches have the same size. The driver sends the whole array,
+     * so it can not be larger than the batch. Only used by the writer thread.
+     */
+    private DBObject [] insertObjects = new DBObject[0];
+
+    /** Measure the encoded size of sampled objects for the budget on the threads that enqueue them. */
+    private final ThreadLocal<SizeSampler> sizeSamplers = new ThreadLocal<SizeSampler>() {
+        @Override
+        protected SizeSampler initialValue() {
+            return new SizeSampler(writeQueue.createEncoder());
+        }
+    };
 
     private final MongoWriterConfig mongoWriterConfig;
     private final String collectionName;
 
-    private final TimeSpan enqueueTimeout;
-
-    private final AtomicLong opsEnqueued = new AtomicLong(0L);
-    private final AtomicLong opsEnqTimeout = new AtomicLong(0L);
-    private final AtomicLong opsEnqCooloff = new AtomicLong(0L);
-    private final AtomicLong opsDequeued = new AtomicLong(0L);
-    private final AtomicLong opsSent = new AtomicLong(0L);
-    private final AtomicLong opsLost = new AtomicLong(0L);
+    /** Tunables, can be changed at runtime through JMX. */
+    private volatile TimeSpan enqueueTimeout;
+    private volatile TimeSpan tickerTime;
+    private volatile TimeSpan failureCooloffTime;
+
+    /** Most recent configuration changes, oldest first. Guarded by this. */
+    private final LinkedList<String> configurationChanges = Lists.newLinkedList();
+
+    private final StripedCounter opsEnqueued = new StripedCounter();
+    private final StripedCounter opsEnqTimeout = new StripedCounter();
+    private final StripedCounter opsEnqCooloff = new StripedCounter();
+    private final StripedCounter opsDequeued = new StripedCounter();
+    private final StripedCounter opsSent = new StripedCounter();
+    private final StripedCounter opsLost = new StripedCounter();
+    private final StripedCounter opsRetried = new StripedCounter();
+    private final StripedCounter opsDuplicates = new StripedCounter();
+    private final AtomicLong connectFailures = new AtomicLong(0L);
     private final AtomicInteger longestBurst = new AtomicInteger(0);
 
 
     MongoWriter(final MongoWriterConfig mongoWriterConfig)
     {
+        this(mongoWriterConfig, null, MongoWriterMetricsSink.NOOP, FieldAliases.NONE);
+    }
+
+    MongoWriter(final MongoWriterConfig mongoWriterConfig, @Nullable final Executor executor, final MongoWriterMetricsSink metricsSink, final FieldAliases fieldAliases)
+    {
+        this(mongoWriterConfig, mongoWriterConfig.getCollectionName(), executor, metricsSink, fieldAliases, MongoWriterBudget.unlimited());
+    }
+
+    /**
+     * @param writerName Name of the writer, identifies it in the memory budget.
+     */
+    MongoWriter(final MongoWriterConfig mongoWriterConfig, final String writerName, @Nullable final Executor executor, final MongoWriterMetricsSink metricsSink, final FieldAliases fieldAliases, final MongoWriterBudget budget)
+    {
+        Preconditions.checkNotNull(metricsSink, "metrics sink must not be null!");
+        Preconditions.checkNotNull(fieldAliases, "field aliases must not be null!");
+        Preconditions.checkNotNull(budget, "budget must not be null!");
+
         this.mongoWriterConfig = mongoWriterConfig;
+        this.executor = executor;
+        this.metricsSink = metricsSink;
         this.collectionName = mongoWriterConfig.getCollectionName();
 
-        this.writeQueue = new LinkedBlockingQueue<Callable<DBObject>>(mongoWriterConfig.getQueueLength());
+        final int queueBytes = mongoWriterConfig.getQueueBytes();
+        final DBEncoderFactory encoderFactory = fieldAliases.getEncoderFactory();
+        this.profiler = new ConversionProfiler(mongoWriterConfig.getProfileSampleRate());
+        this.profileOnDrain = queueBytes <= 0;
+        this.writeQueue = queueBytes > 0 ? new OffHeapWriteQueue(queueBytes, encoderFactory, profiler) : new HeapWriteQueue(mongoWriterConfig.getQueueLength(), encoderFactory);
         this.enqueueTimeout = mongoWriterConfig.getEnqueueTimeout();
+        this.tickerTime = mongoWriterConfig.getTickerTime();
+        this.failureCooloffTime = mongoWriterConfig.getFailureCooloffTime();
+
+        this.assignIds = mongoWriterConfig.isAssignIds();
+        // The driver assigns missing ids before sending, so a resent batch always carries the ids of the first attempt.
+        // It must not stop at the first object that the server already has.
+        this.continueOnError = mongoWriterConfig.getMaxBatchRetries() > 0;
+        this.writeConcern = continueOnError ? WriteConcern.NORMAL.continueOnErrorForInsert(true) : WriteConcern.NORMAL;
+
+        final int duplicateFilterSize = mongoWriterConfig.getDuplicateFilterSize();
+        this.idFilter = duplicateFilterSize > 0 ? new RecentIdFilter(duplicateFilterSize, mongoWriterConfig.getDuplicateFilterFpp()) : null;
+
+        // The off-heap queue knows its size, the heap queue is estimated from sampled objects.
+        this.budgetAccount = budget.register(writerName, queueBytes > 0 ? writeQueue : null);
+        this.insertEncoder = queueBytes > 0 ? writeQueue.createEncoder() : new SizeRecordingEncoder(writeQueue.createEncoder());
     }
 
     synchronized void start()
     {
         if (mongoWriterConfig.isEnabled()) {
-            try {
-                Preconditions.checkState(writerThread.get() == null, "already started, boldly refusing to start twice!");
-                Preconditions.checkState(dbCollection.get() == null, "Already have a collection object, something went very wrong!");
+            Preconditions.checkState(!writerStarted.get(), "already started, boldly refusing to start twice!");
+            Preconditions.checkState(dbCollection.get() == null, "Already have a collection object, something went very wrong!");
 
-                LOG.info("Starting Mongo Writer for collection %s.", collectionName);
+            LOG.info("Starting Mongo Writer for collection %s.", collectionName);
 
-                final DBCollection collection = mongoWriterConfig.getMongoUri().connectDB().getCollection(collectionName);
-                dbCollection.set(collection);
-
-                final Thread thread = new Thread(this, String.format("mongo-%s-writer", collectionName));
-                writerThread.set(thread);
-                thread.start();
-            }
-            catch (UnknownHostException uhe) {
-                LOG.errorDebug(uhe, "Could not connect to mongo URI %s", mongoWriterConfig.getMongoUri());
-            }
+            // The writer thread connects to the server, writes are buffered in the queue until then.
+            getExecutor().execute(this);
+            writerStarted.set(true);
         }
     }
 
     synchronized void stop()
     {
-        final Thread thread = writerThread.getAndSet(null);
-        if (thread != null) {
+        if (writerStarted.getAndSet(false)) {
             LOG.info("Stopping Mongo Writer for collection %s.", collectionName);
             try {
                 taskRunning.set(false);
-                thread.interrupt();
-                thread.join(500L);
+                stopSignal.countDown();
+                writerDone.await(500L, TimeUnit.MILLISECONDS);
             }
             catch (InterruptedException ie) {
                 Thread.currentThread().interrupt();
             }
 
-            final DBCollection collection = dbCollection.getAndSet(null);
-            if (collection != null) {
-                final Mongo mongo = collection.getDB().getMongo();
-                mongo.close();
-            }
+            disconnect();
+            budgetAccount.close();
         } else {
             LOG.debug("Never started, ignoring stop()");
         }
     }
 
+    private Executor getExecutor()
+    {
+        if (executor != null) {
+            return executor;
+        }
+
+        final String threadName = String.format("mongo-%s-writer", collectionName);
+        ThreadFactory threadFactory = null;
+        if (mongoWriterConfig.isUseVirtualThreads()) {
+            threadFactory = MongoThreads.virtualThreadFactory(threadName);
+            if (threadFactory == null) {
+                LOG.info("Virtual threads are not supported by this runtime, using a platform thread for %s.", collectionName);
+            }
+        }
+        return MongoThreads.threadPerTask(threadFactory != null ? threadFactory : MongoThreads.platformThreadFactory(threadName));
+    }
+
+    boolean isEnabled()
+    {
+        return mongoWriterConfig.isEnabled();
+    }
+
     /**
      * Write a new DBObject into the collection.
      */
     public boolean write(final DBObject dbObject)
     {
-        return write(new Callable<DBObject>() {
-            @Override
-            public DBObject call() {
-                return dbObject;
-            }
-        });
+        return tryWrite(dbObject) == EnqueueResult.ENQUEUED;
+    }
+
+    /**
+     * Write a new DBObject into the collection and tell why it was not enqueued.
+     */
+    EnqueueResult tryWrite(final DBObject dbObject)
+    {
+        if (assignIds && dbObject != null && dbObject.get("_id") == null) {
+            dbObject.put("_id", ObjectId.get());
+        }
+        return enqueue(dbObject);
     }
 
     /**
      * Write a new DBObject into the collection. The Callable hands off the actual
-     * conversion work from the caller thread to the writer thread.
+     * conversion work from the caller thread to the writer thread. When the writer
+     * uses an off-heap queue, the conversion happens on the caller thread.
      */
     public boolean write(final Callable<DBObject> callable)
+    {
+        if (assignIds && callable != null) {
+            return enqueue(new IdAssigningCallable(callable, ObjectId.get())) == EnqueueResult.ENQUEUED;
+        }
+        return enqueue(callable) == EnqueueResult.ENQUEUED;
+    }
+
+    /**
+     * Write a POJO into the collection, converted with the given codec. The getters are called when the object is
+     * written, so the POJO must not be changed after handing it to the writer.
+     */
+    public <T> boolean write(final T pojo, final PojoCodec<T> codec)
+    {
+        Preconditions.checkNotNull(codec, "codec must not be null!");
+        return write(pojo == null ? null : codec.toDBObject(pojo));
+    }
+
+    private EnqueueResult enqueue(final Object element)
     {
         if (!mongoWriterConfig.isEnabled()) {
-            return false;
+            return EnqueueResult.DROPPED;
         }
 
         Preconditions.checkState(taskRunning.get(), "Attempt to enqueue while the writer is shut down!");
 
-        if (callable == null) {
-            return false;
+        if (element == null) {
+            return EnqueueResult.DROPPED;
         }
 
         final long cooloffTime = this.cooloffTime.get();
 
         if (cooloffTime > 0) {
             if (System.nanoTime() < cooloffTime) {
-                opsEnqCooloff.incrementAndGet();
+                opsEnqCooloff.increment();
+                metricsSink.enqueueCooloff();
                 LOG.trace("Cooling off from enqueue failure");
-                return false;
+                return EnqueueResult.REFUSED;
             }
             else {
                 this.cooloffTime.set(-1L);
@@ -185,84 +340,423 @@ public class MongoWriter implements Runnable
         }
 
         try {
-            if (enqueueTimeout == null) {
-                writeQueue.put(callable);
-                opsEnqueued.incrementAndGet();
+            if (element instanceof DBObject && budgetAccount.shouldSampleDocumentSize()) {
+                budgetAccount.recordDocumentSize(sizeSamplers.get().measure((DBObject) element));
+            }
+
+            if (!budgetAccount.admit()) {
+                LOG.trace("Memory budget used up");
+            }
+            else if (writeQueue.offer(element, enqueueTimeout)) {
+                budgetAccount.queued();
+                opsEnqueued.increment();
+                metricsSink.enqueued();
                 this.cooloffTime.set(-1L);
-                return true;
+                return EnqueueResult.ENQUEUED;
             }
             else {
-                if (writeQueue.offer(callable, enqueueTimeout.getPeriod(), enqueueTimeout.getUnit())) {
-                    opsEnqueued.incrementAndGet();
-                    this.cooloffTime.set(-1L);
-                    return true;
-                }
-                opsEnqTimeout.incrementAndGet();
+                opsEnqTimeout.increment();
+                metricsSink.enqueueTimeout();
             }
         }
         catch (InterruptedException ie) {
             Thread.currentThread().interrupt();
         }
+        catch (RuntimeException re) {
+            // The off-heap queue converts on enqueue and rejects objects larger than the queue, the budget encodes samples.
+            // Drop the object, like the writer thread does.
+            LOG.warn(re, "Could not enqueue object for %s, dropping it!", collectionName);
+            lost(1);
+            return EnqueueResult.DROPPED;
+        }
+
+        final TimeSpan failureCooloffTime = this.failureCooloffTime;
+        LOG.warn("Could not offer object to queue, sleeping for %s!", failureCooloffTime);
+        this.cooloffTime.compareAndSet(-1L, System.nanoTime() + failureCooloffTime.getMillis() * 1000000L);
+
+        return EnqueueResult.REFUSED;
+    }
+
+    /**
+     * Outcome of enqueueing an object.
+     */
+    enum EnqueueResult
+    {
+        ENQUEUED,
+
+        /** Not enqueued right now, e.g. the queue was full or over budget. A later attempt can succeed. */
+        REFUSED,
+
+        /** The writer will never take the object, e.g. it is disabled or the object can not be converted. */
+        DROPPED;
+    }
+
+    /**
+     * Adds an id, assigned at enqueue time, to the object returned by a Callable unless it already has one.
+     */
+    private static final class IdAssigningCallable implements Callable<DBObject>, MongoWriterProfileTag
+    {
+        private final Callable<DBObject> callable;
+        private final ObjectId id;
+
+        private IdAssigningCallable(final Callable<DBObject> callable, final ObjectId id)
+        {
+            this.callable = callable;
+            this.id = id;
+        }
+
+        @Override
+        public DBObject call() throws Exception
+        {
+            final DBObject dbObject = callable.call();
+            if (dbObject != null && dbObject.get("_id") == null) {
+                dbObject.put("_id", id);
+            }
+            return dbObject;
+        }
+
+        @Override
+        public String getProfileTag()
+        {
+            return ConversionProfiler.tagOf(callable);
+        }
+    }
+
+    /**
+     * Records the size of every document sent. Callables can only be measured here, the memory budget estimates the
+     * size of the queued objects from it.
+     */
+    private final class SizeRecordingEncoder implements DBEncoder
+    {
+        private final DBEncoder encoder;
+
+        private SizeRecordingEncoder(final DBEncoder encoder)
+        {
+            this.encoder = encoder;
+        }
+
+        @Override
+        public int writeObject(final OutputBuffer buffer, final BSONObject object)
+        {
+            final int size = encoder.writeObject(buffer, object);
+            budgetAccount.recordDocumentSize(size);
+            return size;
+        }
+    }
+
+    /**
+     * Encodes objects to measure their size, one per enqueueing thread.
+     */
+    private static final class SizeSampler
+    {
+        private final BasicOutputBuffer buffer = new BasicOutputBuffer();
+        private final DBEncoder encoder;
+
+        private SizeSampler(final DBEncoder encoder)
+        {
+            this.encoder = encoder;
+        }
+
+        int measure(final DBObject dbObject)
+        {
+            buffer.seekStart();
+            return encoder.writeObject(buffer, dbObject);
+        }
+    }
+
+    /**
+     * Convert a queue element, a DBObject or a Callable, into a DBObject.
+     */
+    @SuppressWarnings("unchecked")
+    static DBObject toDBObject(final Object element)
+    {
+        if (element instanceof DBObject) {
+            return (DBObject) element;
+        }
 
-        LOG.warn("Could not offer object to queue, sleeping for %s!", mongoWriterConfig.getFailureCooloffTime());
-        this.cooloffTime.compareAndSet(-1L, System.nanoTime() + mongoWriterConfig.getFailureCooloffTime().getMillis() * 1000000L);
+        if (!(element instanceof Callable)) {
+            throw new IllegalArgumentException(String.format("Can not write a %s!", element.getClass().getName()));
+        }
 
-        return false;
+        try {
+            return ((Callable<DBObject>) element).call();
+        }
+        catch (Exception e) {
+            throw Throwables.propagate(e);
+        }
     }
 
-    protected void flushToMongo(final List<Callable<DBObject>> dbObjects)
+    protected void flushToMongo(final List<DBObject> dbObjects)
     {
-        LOG.trace("Starting write of %d elements...", dbObjects.size());
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Starting write of %d elements...", dbObjects.size());
+        }
 
         final DBCollection collection = dbCollection.get();
         if (collection != null) {
-            final WriteResult writeResult = collection.insert(Lists.transform(dbObjects, CALLABLE_FUNCTION), WriteConcern.NORMAL);
+            if (insertObjects.length != dbObjects.size()) {
+                insertObjects = new DBObject[dbObjects.size()];
+            }
+            final WriteResult writeResult;
+            try {
+                writeResult = collection.insert(dbObjects.toArray(insertObjects), writeConcern, insertEncoder);
+            }
+            finally {
+                // Do not hold on to the objects until the next batch.
+                Arrays.fill(insertObjects, null);
+            }
             final CommandResult cmdResult = writeResult.getLastError();
-            if (cmdResult.ok()) {
-                opsSent.addAndGet(dbObjects.size());
+            final Object err = cmdResult.get("err");
+            if (!cmdResult.ok()) {
+                LOG.warn("Command returned %s", cmdResult.getErrorMessage());
+                batchFailed = true;
+                lost(dbObjects.size());
+            }
+            else if (err == null || (batchRetries > 0 && isDuplicateKeyError(cmdResult))) {
+                // On a resend, the objects that the server already has from the failed attempt fail with a duplicate key.
+                opsSent.add(dbObjects.size());
+                metricsSink.sent(dbObjects.size());
+            }
+            else if (continueOnError) {
+                // The server stored the other objects and only reports the last failure. Its id is still remembered, a
+                // duplicate key is in the collection and other errors would fail again.
+                LOG.warn("Could not write an object to %s: %s", collectionName, err);
+                lost(1);
+                opsSent.add(dbObjects.size() - 1);
+                metricsSink.sent(dbObjects.size() - 1);
             }
             else {
-                LOG.warn("Command returned %s", cmdResult.getErrorMessage());
-                opsLost.addAndGet(dbObjects.size());
+                // The server stopped at the failed object, reported with ok:1.
+                LOG.warn("Could not write %d objects to %s: %s", dbObjects.size(), collectionName, err);
+                batchFailed = true;
+                lost(dbObjects.size());
+            }
+            if (LOG.isTraceEnabled()) {
+                LOG.trace("Wrote %d put ops to Mongo dbCollection %s.", dbObjects.size(), collectionName);
             }
-            LOG.trace("Wrote %d put ops to Mongo dbCollection %s.", dbObjects.size(), collectionName);
         } else {
             LOG.warn("dbCollection is null, probably shutting down!");
         }
     }
 
+    private static boolean isDuplicateKeyError(final CommandResult cmdResult)
+    {
+        final Object code = cmdResult.get("code");
+        if (code instanceof Number) {
+            final int errorCode = ((Number) code).intValue();
+            return errorCode == 11000 || errorCode == 11001;
+        }
+        return StringUtils.startsWith(String.valueOf(cmdResult.get("err")), "E1100");
+    }
+
     @Override
     public void run()
     {
-        final TimeSpan tickerTime = mongoWriterConfig.getTickerTime();
         LOG.info("Mongo writer for %s starting (ticker: %s)...", collectionName, tickerTime);
 
+        final MongoConnections.Backoff connectBackoff = new MongoConnections.Backoff(mongoWriterConfig.getConnectBackoffMin(), mongoWriterConfig.getConnectBackoffMax());
         try {
             while (taskRunning.get()) {
+                if (dbCollection.get() == null) {
+                    if (!connect()) {
+                        final long waitMillis = connectBackoff.next();
+                        LOG.warn("Could not connect to %s, retrying in %d ms", mongoWriterConfig.getMongoUri(), waitMillis);
+                        stopSignal.await(waitMillis, TimeUnit.MILLISECONDS);
+                        continue;
+                    }
+                    connectBackoff.reset();
+                }
+
                 runLoop();
-                Thread.sleep(tickerTime.getMillis());
+                // Re-read every cycle, the ticker time can be changed at runtime.
+                stopSignal.await(tickerTime.getMillis(), TimeUnit.MILLISECONDS);
             }
         }
         catch (InterruptedException e) {
             Thread.currentThread().interrupt();
         }
+        finally {
+            disconnect();
+            writerDone.countDown();
+        }
         LOG.info("Exiting");
     }
 
+    /**
+     * Connect to the server. The driver connects lazily, so ping the server to find out whether it is reachable.
+     */
+    @VisibleForTesting
+    boolean connect()
+    {
+        connectionState = ConnectionState.CONNECTING;
+        final DBCollection collection = MongoConnections.connectAndPing(mongoWriterConfig.getMongoUri(), collectionName);
+        if (collection == null) {
+            connectFailures.incrementAndGet();
+            connectionState = ConnectionState.DISCONNECTED;
+            return false;
+        }
+
+        dbCollection.set(collection);
+        connectionState = ConnectionState.CONNECTED;
+        LOG.info("Mongo writer for %s connected to %s.", collectionName, mongoWriterConfig.getMongoUri());
+        return true;
+    }
+
+    /**
+     * Converts an element and records the time taken and the size of the encoded document.
+     */
+    private DBObject profileConversion(final Object element)
+    {
+        if (profileEncoder == null) {
+            profileEncoder = writeQueue.createEncoder();
+            profileBuffer = new BasicOutputBuffer();
+        }
+
+        final long startTime = System.nanoTime();
+        final DBObject dbObject = toDBObject(element);
+        profileBuffer.seekStart();
+        final int size = profileEncoder.writeObject(profileBuffer, dbObject);
+        profiler.record(element, System.nanoTime() - startTime, size);
+        return dbObject;
+    }
+
+    private void disconnect()
+    {
+        connectionState = ConnectionState.DISCONNECTED;
+        MongoConnections.close(dbCollection.getAndSet(null));
+    }
+
     @VisibleForTesting
     void runLoop()
     {
-        final Callable<DBObject> dbObject = writeQueue.poll();
-        if (dbObject != null) {
-            final List<Callable<DBObject>> dbObjects = Lists.newArrayList();
-            dbObjects.add(dbObject);
-            writeQueue.drainTo(dbObjects);
-            final int size = dbObjects.size();
-            opsDequeued.addAndGet(size);
-            if (size > longestBurst.get()) {
-                longestBurst.set(size);
+        // A queue that hands out bounded batches is drained completely before waiting for the next tick.
+        while (sendBatch()) {
+            if (!writeQueue.isDrainPending()) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Sends the next batch from the queue.
+     *
+     * @return True if the batch was handled, false if the queue was empty or the batch must be resent.
+     */
+    private boolean sendBatch()
+    {
+        // A batch that failed with a network error is resent before taking anything new from the queue.
+        if (batch.isEmpty()) {
+            final int size = writeQueue.drainTo(drainedElements);
+            if (size == 0) {
+                return false;
+            }
+
+            try {
+                opsDequeued.add(size);
+                metricsSink.dequeued(size);
+                updateLongestBurst(size);
+                for (int i = 0; i < size; i++) {
+                    try {
+                        final Object element = drainedElements.get(i);
+                        final DBObject dbObject = (profileOnDrain && profiler.shouldSample()) ? profileConversion(element) : toDBObject(element);
+                        if (idFilter != null && isDuplicate(dbObject)) {
+                            opsDuplicates.increment();
+                            budgetAccount.released(1);
+                            continue;
+                        }
+                        batch.add(dbObject);
+                    }
+                    catch (RuntimeException re) {
+                        LOG.warn(re, "Could not convert object for %s, dropping it!", collectionName);
+                        lost(1);
+                        budgetAccount.released(1);
+                    }
+                }
+            }
+            finally {
+                drainedElements.clear();
+            }
+
+            if (batch.isEmpty()) {
+                return true;
+            }
+        }
+        else {
+            opsRetried.add(batch.size());
+        }
+
+        try {
+            batchFailed = false;
+            flushToMongo(batch);
+            if (idFilter != null) {
+                recordIds();
+            }
+            budgetAccount.released(batch.size());
+            batch.clear();
+            batchRetries = 0;
+            return true;
+        }
+        catch (MongoException.Network ne) {
+            disconnect();
+            if (batchRetries++ < mongoWriterConfig.getMaxBatchRetries()) {
+                LOG.warn(ne, "Network error while writing to %s, will resend %d objects after reconnecting!", collectionName, batch.size());
+            }
+            else {
+                LOG.warn(ne, "Network error while writing to %s, dropping %d objects!", collectionName, batch.size());
+                dropBatch();
+            }
+            return false;
+        }
+        catch (RuntimeException re) {
+            LOG.warn(re, "Could not write to %s, dropping %d objects!", collectionName, batch.size());
+            dropBatch();
+            return true;
+        }
+    }
+
+    /**
+     * Returns true if the object was written recently or is already in the current batch.
+     */
+    private boolean isDuplicate(final DBObject dbObject)
+    {
+        final Object id = dbObject.get("_id");
+        return id != null && (idFilter.mightContain(id) || !batchIds.add(MongoIds.matchKey(id)));
+    }
+
+    /**
+     * Remembers the ids of a batch once it was written. The ids of a batch that is dropped are not remembered, so
+     * the objects can be written again.
+     */
+    private void recordIds()
+    {
+        if (!batchFailed) {
+            for (Object id : batchIds) {
+                idFilter.add(id);
             }
-            flushToMongo(dbObjects);
+        }
+        batchIds.clear();
+    }
+
+    private void dropBatch()
+    {
+        batchIds.clear();
+        lost(batch.size());
+        budgetAccount.released(batch.size());
+        batch.clear();
+        batchRetries = 0;
+    }
+
+    private void lost(final int count)
+    {
+        opsLost.add(count);
+        metricsSink.lost(count);
+    }
+
+    private void updateLongestBurst(final int size)
+    {
+        int current = longestBurst.get();
+        while (size > current && !longestBurst.compareAndSet(current, size)) {
+            current = longestBurst.get();
         }
     }
 
@@ -278,6 +772,12 @@ public class MongoWriter implements Runnable
         return opsEnqTimeout.get();
     }
 
+    @Managed
+    public long getOpsEnqOverBudget()
+    {
+        return budgetAccount.getRejected();
+    }
+
     @Managed
     public long getOpsEnqCooloff()
     {
@@ -302,6 +802,30 @@ public class MongoWriter implements Runnable
         return opsLost.get();
     }
 
+    @Managed
+    public long getOpsRetried()
+    {
+        return opsRetried.get();
+    }
+
+    @Managed
+    public long getOpsDuplicates()
+    {
+        return opsDuplicates.get();
+    }
+
+    @Managed
+    public long getConnectFailures()
+    {
+        return connectFailures.get();
+    }
+
+    @Managed
+    public String getConnectionState()
+    {
+        return connectionState.name();
+    }
+
     @Managed
     public int getQueueLength()
     {
@@ -313,4 +837,137 @@ public class MongoWriter implements Runnable
     {
         return longestBurst.get();
     }
+
+    @Managed
+    public long getQueueBytesUsed()
+    {
+        return writeQueue.getBytesUsed();
+    }
+
+    @Managed
+    public long getQueueBytesHighWater()
+    {
+        return writeQueue.getBytesHighWater();
+    }
+
+    @Managed
+    public int getQueueCapacity()
+    {
+        return writeQueue.getCapacity();
+    }
+
+    /**
+     * Change the capacity of the queue. This is the number of elements or, for an off-heap queue, the number of bytes.
+     */
+    @Managed
+    public synchronized void setQueueCapacity(final int queueCapacity)
+    {
+        final int oldQueueCapacity = writeQueue.getCapacity();
+        writeQueue.setCapacity(queueCapacity);
+        auditChange("queue capacity", oldQueueCapacity, queueCapacity);
+    }
+
+    @Managed
+    public String getTickerTime()
+    {
+        return tickerTime.toString();
+    }
+
+    /**
+     * Change the ticker time, e.g. "250ms". The writer thread picks up the new value on its next cycle.
+     */
+    @Managed
+    public synchronized void setTickerTime(final String tickerTime)
+    {
+        final TimeSpan newTickerTime = new TimeSpan(tickerTime);
+        Preconditions.checkArgument(newTickerTime.getMillis() > 0, "ticker time must be positive!");
+        auditChange("ticker time", this.tickerTime, newTickerTime);
+        this.tickerTime = newTickerTime;
+    }
+
+    @Managed
+    public String getEnqueueTimeout()
+    {
+        final TimeSpan enqueueTimeout = this.enqueueTimeout;
+        return enqueueTimeout == null ? null : enqueueTimeout.toString();
+    }
+
+    /**
+     * Change the enqueue timeout, e.g. "10ms". A blank value waits until there is space in the queue.
+     */
+    @Managed
+    public synchronized void setEnqueueTimeout(final String enqueueTimeout)
+    {
+        final TimeSpan newEnqueueTimeout = StringUtils.isBlank(enqueueTimeout) ? null : new TimeSpan(enqueueTimeout);
+        auditChange("enqueue timeout", this.enqueueTimeout, newEnqueueTimeout);
+        this.enqueueTimeout = newEnqueueTimeout;
+    }
+
+    @Managed
+    public String getFailureCooloffTime()
+    {
+        return failureCooloffTime.toString();
+    }
+
+    /**
+     * Change the cooloff time after an enqueue failure, e.g. "1s".
+     */
+    @Managed
+    public synchronized void setFailureCooloffTime(final String failureCooloffTime)
+    {
+        final TimeSpan newFailureCooloffTime = new TimeSpan(failureCooloffTime);
+        auditChange("failure cooloff time", this.failureCooloffTime, newFailureCooloffTime);
+        this.failureCooloffTime = newFailureCooloffTime;
+    }
+
+    /**
+     * Returns the sampled conversion cost per element class or profile tag, most expensive first.
+     */
+    @Managed
+    public TabularData getConversionProfile()
+    {
+        return profiler.getTopTags(MAX_PROFILE_ROWS);
+    }
+
+    @Managed
+    public void resetConversionProfile()
+    {
+        profiler.reset();
+    }
+
+    @Managed
+    public int getProfileSampleRate()
+    {
+        return profiler.getSampleRate();
+    }
+
+    /**
+     * Change the profile sample rate. One in that many written objects is measured, 0 turns profiling off.
+     */
+    @Managed
+    public synchronized void setProfileSampleRate(final int profileSampleRate)
+    {
+        final int oldProfileSampleRate = profiler.getSampleRate();
+        profiler.setSampleRate(profileSampleRate);
+        auditChange("profile sample rate", oldProfileSampleRate, profileSampleRate);
+    }
+
+    /**
+     * Returns the most recent configuration changes, oldest first.
+     */
+    @Managed
+    public synchronized List<String> getConfigurationChanges()
+    {
+        return Lists.newArrayList(configurationChanges);
+    }
+
+    private synchronized void auditChange(final String name, final Object oldValue, final Object newValue)
+    {
+        LOG.info("Mongo writer for %s: %s changed from %s to %s", collectionName, name, oldValue, newValue);
+
+        configurationChanges.addLast(String.format("%s: %s changed from %s to %s", new DateTime(DateTimeZone.UTC), name, oldValue, newValue));
+        while (configurationChanges.size() > MAX_CONFIGURATION_CHANGES) {
+            configurationChanges.removeFirst();
+        }
+    }
 }
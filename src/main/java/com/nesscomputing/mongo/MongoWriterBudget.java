@@ -0,0 +1,356 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+import org.weakref.jmx.Managed;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Sets;
+import com.google.inject.Inject;
+import com.nesscomputing.logging.Log;
+
+/**
+ * Memory budget shared by all Mongo writers. Every writer registers an account and reports the approximate number of
+ * bytes that it holds in its queue. While the total stays below the budget, all writers accept new objects. Once it
+ * is used up, only writers that hold less than their fair share of the budget still do, so a single slow collection
+ * can not starve the other writers or exhaust the heap.
+ *
+ * Writers with an off-heap queue report the exact number of bytes in the queue. For the on-heap queue, the size is
+ * estimated from a sample of the documents, encoded when they are enqueued. The budget is a soft limit, concurrent
+ * writes can overshoot it by a few documents. The usage is summed up from the accounts when it is needed, the high
+ * water mark only sees these sums.
+ */
+public class MongoWriterBudget
+{
+    private static final Log LOG = Log.findLog();
+
+    /** One in that many enqueued documents is encoded to update the size estimate. */
+    static final int SIZE_SAMPLE_RATE = 1024;
+
+    private static final String [] ITEM_NAMES = new String [] {
+        "id", "writer", "queuedDocuments", "documentBytes", "bytesUsed", "rejected"
+    };
+
+    private static final CompositeType ROW_TYPE;
+    private static final TabularType TABLE_TYPE;
+
+    static {
+        try {
+            ROW_TYPE = new CompositeType("MongoWriterBudgetAccount", "Budget usage of a writer", ITEM_NAMES, ITEM_NAMES,
+                                         new OpenType<?> [] {
+                                             SimpleType.LONG, SimpleType.STRING, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG
+                                         });
+            TABLE_TYPE = new TabularType("MongoWriterBudgetAccounts", "Budget usage per writer", ROW_TYPE, new String [] {"id"});
+        }
+        catch (OpenDataException ode) {
+            throw Throwables.propagate(ode);
+        }
+    }
+
+    private final Set<Account> accounts = Sets.newConcurrentHashSet();
+    private final AtomicLong nextAccountId = new AtomicLong(0L);
+    private final AtomicLong bytesHighWater = new AtomicLong(0L);
+    private final int initialDocumentBytes;
+
+    private volatile int accountCount = 0;
+    private volatile long maxBytes;
+
+    @Inject
+    MongoWriterBudget(final MongoWriterBudgetConfig budgetConfig)
+    {
+        this(budgetConfig.getMaxBytes(), budgetConfig.getDocumentBytes());
+    }
+
+    MongoWriterBudget(final long maxBytes, final int initialDocumentBytes)
+    {
+        Preconditions.checkArgument(maxBytes >= 0, "budget must not be negative!");
+        Preconditions.checkArgument(initialDocumentBytes > 0, "document size must be positive!");
+        this.maxBytes = maxBytes;
+        this.initialDocumentBytes = initialDocumentBytes;
+    }
+
+    /**
+     * Returns a budget that only tracks the usage of its writers.
+     */
+    static MongoWriterBudget unlimited()
+    {
+        return new MongoWriterBudget(0L, 1024);
+    }
+
+    /**
+     * Registers a new writer that estimates the size of its queue. The account must be closed when the writer stops.
+     */
+    Account register(final String writerName)
+    {
+        return register(writerName, null);
+    }
+
+    /**
+     * Registers a new writer. The account must be closed when the writer stops.
+     *
+     * @param queue If not null, the queue of the writer that reports its exact size in bytes.
+     */
+    synchronized Account register(final String writerName, @Nullable final MongoWriteQueue queue)
+    {
+        final Account account = new Account(nextAccountId.incrementAndGet(), writerName, queue, initialDocumentBytes);
+        accounts.add(account);
+        accountCount = accounts.size();
+        return account;
+    }
+
+    private synchronized void unregister(final Account account)
+    {
+        accounts.remove(account);
+        accountCount = accounts.size();
+    }
+
+    /**
+     * Returns true if the account may queue another document.
+     */
+    private boolean admit(final Account account)
+    {
+        final long maxBytes = this.maxBytes;
+        if (maxBytes == 0L) {
+            return true;
+        }
+
+        // Below the share that it gets even if all writers hold data, no need to look at the other writers.
+        final long accountBytes = account.getBytesUsed();
+        if (accountBytes < maxBytes / Math.max(1, accountCount)) {
+            return true;
+        }
+
+        long bytesUsed = 0L;
+        int activeAccounts = 0;
+        for (Account a : accounts) {
+            final long bytes = a == account ? accountBytes : a.getBytesUsed();
+            bytesUsed += bytes;
+            if (a == account || bytes > 0L) {
+                activeAccounts++;
+            }
+        }
+        updateHighWater(bytesUsed);
+
+        if (bytesUsed < maxBytes) {
+            return true;
+        }
+
+        // Over budget, the writers that currently hold data share it evenly.
+        return accountBytes < maxBytes / Math.max(1, activeAccounts);
+    }
+
+    private void updateHighWater(final long bytesUsed)
+    {
+        long highWater = bytesHighWater.get();
+        while (bytesUsed > highWater && !bytesHighWater.compareAndSet(highWater, bytesUsed)) {
+            highWater = bytesHighWater.get();
+        }
+    }
+
+    @Managed
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    /**
+     * Change the budget, 0 only tracks the usage.
+     */
+    @Managed
+    public void setMaxBytes(final long maxBytes)
+    {
+        Preconditions.checkArgument(maxBytes >= 0, "budget must not be negative!");
+        LOG.info("Mongo writer budget changed from %d to %d bytes", this.maxBytes, maxBytes);
+        this.maxBytes = maxBytes;
+    }
+
+    @Managed
+    public long getBytesUsed()
+    {
+        long bytesUsed = 0L;
+        for (Account account : accounts) {
+            bytesUsed += account.getBytesUsed();
+        }
+        updateHighWater(bytesUsed);
+        return bytesUsed;
+    }
+
+    /**
+     * Highest usage seen while admitting documents, releasing them or reading the usage.
+     */
+    @Managed
+    public long getBytesHighWater()
+    {
+        return bytesHighWater.get();
+    }
+
+    @Managed
+    public int getWriterCount()
+    {
+        return accountCount;
+    }
+
+    @Managed
+    public long getRejected()
+    {
+        long rejected = 0L;
+        for (Account account : accounts) {
+            rejected += account.rejected.get();
+        }
+        return rejected;
+    }
+
+    /**
+     * Returns the usage of every registered writer.
+     */
+    @Managed
+    public TabularData getWriters()
+    {
+        final TabularDataSupport table = new TabularDataSupport(TABLE_TYPE);
+        try {
+            for (Account account : accounts) {
+                table.put(account.toCompositeData());
+            }
+        }
+        catch (OpenDataException ode) {
+            throw Throwables.propagate(ode);
+        }
+        return table;
+    }
+
+    /**
+     * The share of the budget held by a single writer.
+     */
+    final class Account
+    {
+        private final long id;
+        private final String writerName;
+        private final MongoWriteQueue queue;
+        private final StripedCounter queuedDocuments = new StripedCounter();
+        private final StripedCounter rejected = new StripedCounter();
+
+        /** Moving average of the encoded document size. Racy updates only lose a sample. */
+        private volatile long documentBytes;
+        private volatile boolean documentBytesMeasured = false;
+
+        private Account(final long id, final String writerName, @Nullable final MongoWriteQueue queue, final long documentBytes)
+        {
+            this.id = id;
+            this.writerName = writerName;
+            this.queue = queue;
+            this.documentBytes = documentBytes;
+        }
+
+        /**
+         * Returns true if another document may be queued. A caller that gets true must call {@link Account#queued()}
+         * once the document is in the queue.
+         */
+        boolean admit()
+        {
+            if (MongoWriterBudget.this.admit(this)) {
+                return true;
+            }
+            rejected.increment();
+            return false;
+        }
+
+        void queued()
+        {
+            queuedDocuments.increment();
+        }
+
+        /**
+         * A number of documents was sent or dropped and no longer uses memory. Must only be called from the writer thread.
+         */
+        void released(final int count)
+        {
+            if (count > 0) {
+                // Samples the high water mark, the queue is at its fullest right before a batch is released.
+                MongoWriterBudget.this.getBytesUsed();
+                queuedDocuments.add(-count);
+            }
+        }
+
+        /**
+         * Returns true if the size of the next document should be recorded. Always true until a size was recorded,
+         * false if the queue reports its exact size.
+         */
+        boolean shouldSampleDocumentSize()
+        {
+            return queue == null && (!documentBytesMeasured || ThreadLocalRandom.current().nextInt(SIZE_SAMPLE_RATE) == 0);
+        }
+
+        /**
+         * Records the encoded size of a queued or sent document. The first size replaces the configured default.
+         */
+        void recordDocumentSize(final int size)
+        {
+            if (documentBytesMeasured) {
+                final long documentBytes = this.documentBytes;
+                this.documentBytes = documentBytes + (size - documentBytes) / 16;
+            }
+            else {
+                documentBytes = size;
+                documentBytesMeasured = true;
+            }
+        }
+
+        long getBytesUsed()
+        {
+            return queue != null ? queue.getBytesUsed() : Math.max(0L, queuedDocuments.get()) * documentBytes;
+        }
+
+        long getRejected()
+        {
+            return rejected.get();
+        }
+
+        /**
+         * Releases the whole share of the writer and removes it from the budget.
+         */
+        void close()
+        {
+            unregister(this);
+        }
+
+        private CompositeDataSupport toCompositeData() throws OpenDataException
+        {
+            return new CompositeDataSupport(ROW_TYPE, ITEM_NAMES, new Object [] {
+                id,
+                writerName,
+                Math.max(0L, queuedDocuments.get()),
+                documentBytes,
+                getBytesUsed(),
+                rejected.get()
+            });
+        }
+    }
+}
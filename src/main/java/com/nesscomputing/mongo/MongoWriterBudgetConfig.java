@@ -0,0 +1,46 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import org.skife.config.Config;
+import org.skife.config.Default;
+
+/**
+ * Configures the memory budget that is shared by all Mongo writers.
+ */
+public abstract class MongoWriterBudgetConfig
+{
+    /**
+     * Maximum number of bytes that all writers together may hold in their queues. When the budget is used up, a writer
+     * only accepts new objects while it holds less than its fair share. 0 tracks the usage without limiting it.
+     */
+    @Config("ness.mongo.writer-budget.max-bytes")
+    @Default("0")
+    public long getMaxBytes()
+    {
+        return 0L;
+    }
+
+    /**
+     * Assumed size of a queued object until a writer with an on-heap queue has measured the encoded size of an object.
+     */
+    @Config("ness.mongo.writer-budget.document-bytes")
+    @Default("1024")
+    public int getDocumentBytes()
+    {
+        return 1024;
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import org.weakref.jmx.guice.MBeanModule;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Scopes;
+import com.nesscomputing.config.ConfigProvider;
+
+/**
+ * Binds the memory budget shared by all Mongo writers. Installed by every {@link MongoWriterModule}, Guice
+ * only installs it once.
+ */
+final class MongoWriterBudgetModule extends AbstractModule
+{
+    @Override
+    protected void configure()
+    {
+        bind(MongoWriterBudgetConfig.class).toProvider(ConfigProvider.of(MongoWriterBudgetConfig.class)).in(Scopes.SINGLETON);
+        bind(MongoWriterBudget.class).in(Scopes.SINGLETON);
+
+        install(new MBeanModule() {
+            @Override
+            public void configureMBeans() {
+                export(MongoWriterBudget.class).as("ness.mongo.writer:name=_budget");
+            }
+        });
+    }
+
+    @Override
+    public boolean equals(final Object other)
+    {
+        return other instanceof MongoWriterBudgetModule;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return MongoWriterBudgetModule.class.hashCode();
+    }
+}
@@ -49,6 +49,20 @@ public abstract class MongoWriterConfig
         return 1000;
     }
 
+    /**
+     * If set to a positive value, buffer the pending writes BSON encoded in an off-heap buffer of that many bytes
+     * instead of the on-heap queue. The queue is then bounded by this size and the queue length is ignored.
+     * The objects are converted and encoded on the thread that calls write(), an object that can not be converted is
+     * dropped and write() returns false. Draining uses a second buffer, so up to twice that many bytes of direct
+     * memory are used.
+     */
+    @Config({"ness.mongo.writer.${writername}.queue-bytes","ness.mongo.writer.queue-bytes"})
+    @Default("0")
+    public int getQueueBytes()
+    {
+        return 0;
+    }
+
     /**
      * Time that the writer thread sleeps (and accumulates new events).
      */
@@ -82,6 +96,95 @@ public abstract class MongoWriterConfig
         return new TimeSpan("1s");
     }
 
+    /**
+     * Initial wait time before reconnecting after the writer could not connect to the server. The wait time
+     * doubles with every failed attempt up to the maximum below.
+     */
+    @Config({"ness.mongo.writer.${writername}.connect-backoff-min","ness.mongo.writer.connect-backoff-min"})
+    @Default("100ms")
+    public TimeSpan getConnectBackoffMin()
+    {
+        return new TimeSpan("100ms");
+    }
+
+    /**
+     * Maximum wait time between two connection attempts.
+     */
+    @Config({"ness.mongo.writer.${writername}.connect-backoff-max","ness.mongo.writer.connect-backoff-max"})
+    @Default("30s")
+    public TimeSpan getConnectBackoffMax()
+    {
+        return new TimeSpan("30s");
+    }
+
+    /**
+     * Number of times a batch is resent after a network error before it is dropped. A resent batch keeps the ids of
+     * the first attempt and continues past the objects that the server already stored. If positive, the server also
+     * continues past an object that it can not store on the first attempt, only that object is lost. By default,
+     * the batch is dropped and the server stops at the first object that it can not store.
+     */
+    @Config({"ness.mongo.writer.${writername}.max-batch-retries","ness.mongo.writer.max-batch-retries"})
+    @Default("0")
+    public int getMaxBatchRetries()
+    {
+        return 0;
+    }
+
+    /**
+     * Assign an ObjectId to every object without an _id when it is enqueued instead of leaving that to the
+     * driver at insert time. Resending a batch after a network error then can not create duplicates, the server
+     * rejects the objects that it already stored.
+     */
+    @Config({"ness.mongo.writer.${writername}.assign-ids","ness.mongo.writer.assign-ids"})
+    @Default("false")
+    public boolean isAssignIds()
+    {
+        return false;
+    }
+
+    /**
+     * If positive, drop objects whose _id was already written recently before sending them. This is the minimum
+     * number of recent ids that are remembered, memory use is fixed and grows with this number.
+     */
+    @Config({"ness.mongo.writer.${writername}.duplicate-filter-size","ness.mongo.writer.duplicate-filter-size"})
+    @Default("0")
+    public int getDuplicateFilterSize()
+    {
+        return 0;
+    }
+
+    /**
+     * Probability that the duplicate filter wrongly drops an object that was not written before.
+     */
+    @Config({"ness.mongo.writer.${writername}.duplicate-filter-fpp","ness.mongo.writer.duplicate-filter-fpp"})
+    @Default("0.000001")
+    public double getDuplicateFilterFpp()
+    {
+        return 0.000001d;
+    }
+
+    /**
+     * If positive, measure conversion time and encoded size of one in that many written objects and report
+     * them per class (or {@link MongoWriterProfileTag}) through JMX. 0 turns profiling off.
+     */
+    @Config({"ness.mongo.writer.${writername}.profile-sample-rate","ness.mongo.writer.profile-sample-rate"})
+    @Default("0")
+    public int getProfileSampleRate()
+    {
+        return 0;
+    }
+
+    /**
+     * Run the writer loop on a virtual thread if the runtime supports them. Falls back to a platform
+     * thread otherwise. Ignored if an executor or thread factory is bound for this writer.
+     */
+    @Config({"ness.mongo.writer.${writername}.use-virtual-threads","ness.mongo.writer.use-virtual-threads"})
+    @Default("false")
+    public boolean isUseVirtualThreads()
+    {
+        return false;
+    }
+
     /**
      * The Mongo DB Server to connect to.
      */
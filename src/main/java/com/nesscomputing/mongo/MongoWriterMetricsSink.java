@@ -0,0 +1,69 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+/**
+ * Receives the events of a MongoWriter as they happen, e.g. to feed them into a metrics system that computes
+ * windowed rates. The methods are called on the producer and writer threads, so they must be thread safe, fast
+ * and must not throw.
+ */
+public interface MongoWriterMetricsSink
+{
+    /** Does nothing. Used if no sink is bound for a writer. */
+    MongoWriterMetricsSink NOOP = new MongoWriterMetricsSink() {
+        @Override
+        public void enqueued() {
+        }
+
+        @Override
+        public void enqueueTimeout() {
+        }
+
+        @Override
+        public void enqueueCooloff() {
+        }
+
+        @Override
+        public void dequeued(final int count) {
+        }
+
+        @Override
+        public void sent(final int count) {
+        }
+
+        @Override
+        public void lost(final int count) {
+        }
+    };
+
+    /** An object was accepted into the queue. */
+    void enqueued();
+
+    /** An object could not be enqueued within the enqueue timeout. */
+    void enqueueTimeout();
+
+    /** An object was rejected because the writer is cooling off after an enqueue failure. */
+    void enqueueCooloff();
+
+    /** A batch of objects was taken from the queue by the writer thread. */
+    void dequeued(int count);
+
+    /** A batch of objects was written to Mongo. */
+    void sent(int count);
+
+    /** A batch of objects could not be written to Mongo. */
+    void lost(int count);
+}
@@ -17,17 +17,23 @@ package com.nesscomputing.mongo;
 
 import static java.lang.String.format;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
 import org.apache.commons.lang3.StringUtils;
 import org.weakref.jmx.guice.MBeanModule;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
 import com.google.inject.AbstractModule;
+import com.google.inject.Binder;
+import com.google.inject.Binding;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
 import com.google.inject.Key;
 import com.google.inject.Provider;
 import com.google.inject.Scopes;
+import com.google.inject.binder.LinkedBindingBuilder;
 import com.google.inject.name.Named;
 import com.google.inject.name.Names;
 import com.nesscomputing.config.ConfigProvider;
@@ -55,6 +61,8 @@ public class MongoWriterModule extends AbstractModule
         bind(MongoWriterConfig.class).annotatedWith(named).toProvider(ConfigProvider.of(MongoWriterConfig.class, ImmutableMap.of("writername", writerName))).in(Scopes.SINGLETON);
         bind(MongoWriter.class).annotatedWith(named).toProvider(new MongoWriterProvider(named)).asEagerSingleton();
 
+        install(new MongoWriterBudgetModule());
+
         install(new MBeanModule() {
             @Override
             public void configureMBeans() {
@@ -63,10 +71,39 @@ public class MongoWriterModule extends AbstractModule
         });
     }
 
+    /**
+     * Bind an executor that runs the writer loop of the named writer. The writer loop occupies a thread of the
+     * executor until the writer is stopped.
+     */
+    public static LinkedBindingBuilder<Executor> bindExecutor(final Binder binder, final String writerName)
+    {
+        return binder.bind(Executor.class).annotatedWith(Names.named(writerName));
+    }
+
+    /**
+     * Bind a thread factory that creates the writer thread of the named writer. Ignored if an executor is bound as well.
+     */
+    public static LinkedBindingBuilder<ThreadFactory> bindThreadFactory(final Binder binder, final String writerName)
+    {
+        return binder.bind(ThreadFactory.class).annotatedWith(Names.named(writerName));
+    }
+
+    /**
+     * Bind a sink that receives the events of the named writer.
+     */
+    public static LinkedBindingBuilder<MongoWriterMetricsSink> bindMetricsSink(final Binder binder, final String writerName)
+    {
+        return binder.bind(MongoWriterMetricsSink.class).annotatedWith(Names.named(writerName));
+    }
+
     public static class MongoWriterProvider extends AbstractLifecycleProvider<MongoWriter> implements Provider<MongoWriter>
     {
         private final Named named;
         private MongoWriterConfig writerConfig = null;
+        private Executor executor = null;
+        private MongoWriterMetricsSink metricsSink = MongoWriterMetricsSink.NOOP;
+        private FieldAliases fieldAliases = FieldAliases.NONE;
+        private MongoWriterBudget budget = null;
 
         private MongoWriterProvider(final Named named)
         {
@@ -91,13 +128,30 @@ public class MongoWriterModule extends AbstractModule
         void setInjector(final Injector injector)
         {
             this.writerConfig = injector.getInstance(Key.get(MongoWriterConfig.class, named));
+
+            final Binding<Executor> executorBinding = injector.getExistingBinding(Key.get(Executor.class, named));
+            final Binding<ThreadFactory> threadFactoryBinding = injector.getExistingBinding(Key.get(ThreadFactory.class, named));
+            if (executorBinding != null) {
+                this.executor = executorBinding.getProvider().get();
+            }
+            else if (threadFactoryBinding != null) {
+                this.executor = MongoThreads.threadPerTask(threadFactoryBinding.getProvider().get());
+            }
+
+            final Binding<MongoWriterMetricsSink> metricsSinkBinding = injector.getExistingBinding(Key.get(MongoWriterMetricsSink.class, named));
+            if (metricsSinkBinding != null) {
+                this.metricsSink = metricsSinkBinding.getProvider().get();
+            }
+
+            this.fieldAliases = FieldAliasBinder.getFieldAliases(injector, writerConfig.getCollectionName());
+            this.budget = injector.getInstance(MongoWriterBudget.class);
         }
 
         @Override
         public MongoWriter internalGet()
         {
             Preconditions.checkState(writerConfig != null, "no writerConfig was injected!");
-            return new MongoWriter(writerConfig);
+            return new MongoWriter(writerConfig, named.value(), executor, metricsSink, fieldAliases, budget);
         }
     }
 }
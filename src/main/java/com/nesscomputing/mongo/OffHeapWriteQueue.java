@@ -0,0 +1,398 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nullable;
+
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.ObjectId;
+import org.skife.config.TimeSpan;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.mongodb.DBEncoder;
+import com.mongodb.DBEncoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBEncoder;
+import com.mongodb.LazyDBCallback;
+import com.mongodb.LazyDBEncoder;
+import com.mongodb.LazyDBObject;
+
+/**
+ * Keeps the pending writes BSON encoded in a direct (off-heap) buffer. The conversion and encoding into BSON happens
+ * on the producer thread, the writer thread sends the encoded bytes without decoding them again. The queue is bounded
+ * by the number of bytes used, not by the number of elements.
+ *
+ * Draining swaps the producer buffer with a second direct buffer, so the queue uses up to twice its capacity in
+ * direct memory. The driver can only send documents from a heap array, so the writer thread moves them through a
+ * small heap chunk, one batch at a time.
+ */
+class OffHeapWriteQueue implements MongoWriteQueue
+{
+    private static final LazyDBCallback LAZY_CALLBACK = new LazyDBCallback(null);
+
+    /** Size of the heap chunk that a batch is copied into. Grows to fit a single larger document. */
+    static final int DRAIN_CHUNK_BYTES = 1024 * 1024;
+
+    /** Per producer encoder and buffer, avoids allocating them for every document. */
+    private final ThreadLocal<EncodeState> encodeStates = new ThreadLocal<EncodeState>() {
+        @Override
+        protected EncodeState initialValue() {
+            return new EncodeState(encoderFactory.create());
+        }
+    };
+
+    private final DBEncoderFactory encoderFactory;
+    private final ConversionProfiler profiler;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+
+    /** Encoded documents, back to back. Can be larger than the capacity after shrinking the queue. Guarded by lock. */
+    private ByteBuffer buffer;
+    private BufferSink bufferSink;
+    private int capacity;
+
+    /** Empty buffer that replaces the producer buffer on the next drain, null if it must be allocated. Guarded by lock. */
+    private ByteBuffer spareBuffer = null;
+
+    /** Number of documents in the buffer. Guarded by lock. */
+    private int count = 0;
+    private int highWater = 0;
+
+    /** Bytes used in the buffer. Written under the lock, read without it. */
+    private volatile int bufferBytes = 0;
+
+    /** Buffer taken from the producers, read up to its limit by the writer thread. Only used by the writer thread. */
+    private ByteBuffer drainingBuffer = null;
+
+    /** Documents and bytes left in the draining buffer. Written by the writer thread, read for the statistics. */
+    private volatile int drainingCount = 0;
+    private volatile int drainingBytes = 0;
+
+    /** Holds the documents of the current batch on the writer thread. */
+    private byte [] drainChunk = new byte[0];
+
+    OffHeapWriteQueue(final int queueBytes)
+    {
+        this(queueBytes, DefaultDBEncoder.FACTORY);
+    }
+
+    /**
+     * @param encoderFactory Creates the encoders that encode the documents when they are enqueued.
+     */
+    OffHeapWriteQueue(final int queueBytes, final DBEncoderFactory encoderFactory)
+    {
+        this(queueBytes, encoderFactory, null);
+    }
+
+    /**
+     * @param profiler If not null, samples the conversion and encoding of the enqueued elements.
+     */
+    OffHeapWriteQueue(final int queueBytes, final DBEncoderFactory encoderFactory, @Nullable final ConversionProfiler profiler)
+    {
+        Preconditions.checkArgument(queueBytes > 0, "queue size must be positive!");
+        this.encoderFactory = encoderFactory;
+        this.profiler = profiler;
+        this.buffer = allocate(queueBytes);
+        this.bufferSink = new BufferSink(buffer);
+        this.capacity = queueBytes;
+    }
+
+    @Override
+    public boolean offer(final Object element, @Nullable final TimeSpan timeout) throws InterruptedException
+    {
+        final EncodeState encodeState = encodeStates.get();
+        final int size;
+        if (profiler != null && profiler.shouldSample()) {
+            final long startTime = System.nanoTime();
+            size = encodeState.encode(MongoWriter.toDBObject(element));
+            profiler.record(element, System.nanoTime() - startTime, size);
+        }
+        else {
+            size = encodeState.encode(MongoWriter.toDBObject(element));
+        }
+
+        long nanos = timeout == null ? 0L : timeout.getUnit().toNanos(timeout.getPeriod());
+
+        lock.lockInterruptibly();
+        try {
+            Preconditions.checkArgument(size <= capacity, "Document size %s exceeds the queue size %s!", size, capacity);
+
+            while (buffer.position() + size > capacity) {
+                if (timeout == null) {
+                    notFull.await();
+                }
+                else {
+                    if (nanos <= 0L) {
+                        return false;
+                    }
+                    nanos = notFull.awaitNanos(nanos);
+                }
+            }
+
+            bufferSink.copy(encodeState.buffer, size);
+            bufferBytes = buffer.position();
+            count++;
+            highWater = Math.max(highWater, buffer.position() + drainingBytes);
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drains the documents in batches of at most {@link OffHeapWriteQueue#DRAIN_CHUNK_BYTES}. The documents that do not
+     * fit stay in the queue and are returned by the next call.
+     */
+    @Override
+    public int drainTo(final List<Object> drained)
+    {
+        if (drainingBuffer == null || !drainingBuffer.hasRemaining()) {
+            if (!swapBuffers()) {
+                return 0;
+            }
+        }
+
+        final ByteBuffer documents = drainingBuffer;
+        final int firstSize = documents.getInt(documents.position());
+        if (drainChunk.length < firstSize) {
+            drainChunk = new byte[Math.max(firstSize, Math.min(DRAIN_CHUNK_BYTES, capacity))];
+        }
+
+        // Take as many whole documents as fit into the chunk, at least one.
+        int bytes = 0;
+        int drainCount = 0;
+        while (documents.position() + bytes < documents.limit()) {
+            final int size = documents.getInt(documents.position() + bytes);
+            if (bytes + size > drainChunk.length) {
+                break;
+            }
+            bytes += size;
+            drainCount++;
+        }
+
+        documents.get(drainChunk, 0, bytes);
+        drainingCount -= drainCount;
+        drainingBytes -= bytes;
+
+        final ByteBuffer chunk = ByteBuffer.wrap(drainChunk, 0, bytes).order(ByteOrder.LITTLE_ENDIAN);
+        int offset = 0;
+        while (offset < bytes) {
+            drained.add(new LazyDBObject(drainChunk, offset, LAZY_CALLBACK));
+            offset += chunk.getInt(offset);
+        }
+        return drainCount;
+    }
+
+    /**
+     * Hands the producer buffer to the writer thread and gives the producers an empty one.
+     *
+     * @return False if the queue was empty.
+     */
+    private boolean swapBuffers()
+    {
+        lock.lock();
+        try {
+            if (drainingBuffer != null) {
+                drainingBuffer.clear();
+                spareBuffer = drainingBuffer;
+                drainingBuffer = null;
+            }
+            if (count == 0) {
+                return false;
+            }
+
+            if (spareBuffer == null || spareBuffer.capacity() < capacity || spareBuffer.capacity() / 2 > capacity) {
+                spareBuffer = allocate(capacity);
+            }
+
+            drainingBuffer = buffer;
+            drainingBuffer.flip();
+            drainingCount = count;
+            drainingBytes = drainingBuffer.limit();
+
+            buffer = spareBuffer;
+            bufferSink = new BufferSink(buffer);
+            spareBuffer = null;
+            bufferBytes = 0;
+            count = 0;
+            notFull.signalAll();
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private static ByteBuffer allocate(final int bytes)
+    {
+        return ByteBuffer.allocateDirect(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public boolean isDrainPending()
+    {
+        return drainingBuffer != null && drainingBuffer.hasRemaining();
+    }
+
+    @Override
+    public DBEncoder createEncoder()
+    {
+        return new LazyDBEncoder();
+    }
+
+    @Override
+    public void setCapacity(final int capacity)
+    {
+        Preconditions.checkArgument(capacity > 0, "queue size must be positive!");
+
+        lock.lock();
+        try {
+            final int bytes = buffer.position();
+            // Only reallocate when growing or when most of the direct memory would go unused.
+            if (capacity > buffer.capacity() || capacity < buffer.capacity() / 2) {
+                final ByteBuffer newBuffer = allocate(Math.max(capacity, bytes));
+                buffer.flip();
+                newBuffer.put(buffer);
+                this.buffer = newBuffer;
+                this.bufferSink = new BufferSink(newBuffer);
+                this.spareBuffer = null;
+            }
+            this.capacity = capacity;
+            notFull.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getCapacity()
+    {
+        lock.lock();
+        try {
+            return capacity;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size()
+    {
+        lock.lock();
+        try {
+            return count + drainingCount;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getBytesUsed()
+    {
+        // Called for every write by the memory budget, so it does not take the lock.
+        return bufferBytes + drainingBytes;
+    }
+
+    @Override
+    public long getBytesHighWater()
+    {
+        lock.lock();
+        try {
+            return highWater;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class EncodeState
+    {
+        private final BasicOutputBuffer buffer = new BasicOutputBuffer();
+        private final DBEncoder encoder;
+
+        private EncodeState(final DBEncoder encoder)
+        {
+            this.encoder = encoder;
+        }
+
+        int encode(final DBObject dbObject)
+        {
+            // The driver can not add an _id to the lazy objects handed to the insert, so it must be assigned here.
+            if (dbObject.get("_id") == null) {
+                dbObject.put("_id", ObjectId.get());
+            }
+            buffer.seekStart();
+            return encoder.writeObject(buffer, dbObject);
+        }
+    }
+
+    /**
+     * Copies the encoded document from the encoding buffer into the direct buffer. The encoding buffer is reused
+     * between documents, so only the first size bytes belong to the current document.
+     */
+    private static final class BufferSink extends OutputStream
+    {
+        private final ByteBuffer target;
+        private int remaining = 0;
+
+        private BufferSink(final ByteBuffer target)
+        {
+            this.target = target;
+        }
+
+        void copy(final BasicOutputBuffer source, final int size)
+        {
+            remaining = size;
+            try {
+                source.pipe(this);
+            }
+            catch (IOException ioe) {
+                throw Throwables.propagate(ioe);
+            }
+        }
+
+        @Override
+        public void write(final int b)
+        {
+            if (remaining > 0) {
+                target.put((byte) b);
+                remaining--;
+            }
+        }
+
+        @Override
+        public void write(final byte [] b, final int off, final int len)
+        {
+            final int length = Math.min(len, remaining);
+            target.put(b, off, length);
+            remaining -= length;
+        }
+    }
+}
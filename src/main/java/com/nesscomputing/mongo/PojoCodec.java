@@ -0,0 +1,251 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import java.beans.Introspector;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import org.bson.BSON;
+import org.bson.BSONObject;
+import org.bson.Transformer;
+import org.bson.types.BSONTimestamp;
+import org.bson.types.Binary;
+import org.bson.types.Code;
+import org.bson.types.MaxKey;
+import org.bson.types.MinKey;
+import org.bson.types.ObjectId;
+import org.bson.types.Symbol;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+import com.mongodb.DBObject;
+import com.mongodb.DBRefBase;
+
+/**
+ * Converts POJOs into DBObjects by calling their getters. The getters are looked up once per class and called through
+ * method handles. The DBObjects read the getters only when they are encoded, so they cost a single allocation and
+ * the encoder writes the values straight into BSON. Values are encoded with the BSON encoding hooks, e.g. the ones
+ * bound with {@link BSONTransformerBinder}. Other values that BSON does not know are converted as POJOs as well,
+ * enums are stored by name.
+ */
+public final class PojoCodec<T>
+{
+    private static final ConcurrentMap<Class<?>, PojoCodec<?>> CODECS = Maps.newConcurrentMap();
+
+    private static final Class<?> [] BSON_TYPES = new Class<?> [] {
+        Number.class, String.class, Boolean.class, Character.class, Date.class, Pattern.class, UUID.class, byte [].class,
+        ObjectId.class, Binary.class, Code.class, Symbol.class, BSONTimestamp.class, MinKey.class, MaxKey.class,
+        DBRefBase.class, BSONObject.class
+    };
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
+    private static final Function<Object, Object> TO_BSON_VALUE = new Function<Object, Object>() {
+        @Override
+        public Object apply(final Object value) {
+            return toBsonValue(value);
+        }
+    };
+
+    private final Class<T> pojoClass;
+    private final ImmutableMap<String, MethodHandle> getters;
+
+    /**
+     * Returns the codec for a class, building it on first use.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> PojoCodec<T> forClass(final Class<T> pojoClass)
+    {
+        PojoCodec<?> codec = CODECS.get(pojoClass);
+        if (codec == null) {
+            codec = new PojoCodec<T>(pojoClass);
+            final PojoCodec<?> existing = CODECS.putIfAbsent(pojoClass, codec);
+            if (existing != null) {
+                codec = existing;
+            }
+        }
+        return (PojoCodec<T>) codec;
+    }
+
+    /**
+     * Converts any POJO with the codec for its class.
+     */
+    @SuppressWarnings("unchecked")
+    public static DBObject convert(final Object pojo)
+    {
+        Preconditions.checkNotNull(pojo, "pojo must not be null!");
+        return ((PojoCodec<Object>) forClass(pojo.getClass())).toDBObject(pojo);
+    }
+
+    private PojoCodec(final Class<T> pojoClass)
+    {
+        Preconditions.checkArgument(!BSONObject.class.isAssignableFrom(pojoClass), "%s is already a BSON object!", pojoClass);
+        this.pojoClass = pojoClass;
+
+        final Method [] methods = pojoClass.getMethods();
+        // Sort for a stable field order in the documents.
+        Arrays.sort(methods, new Comparator<Method>() {
+            @Override
+            public int compare(final Method a, final Method b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+
+        final Map<String, MethodHandle> getters = Maps.newLinkedHashMap();
+        final MethodHandles.Lookup lookup = MethodHandles.lookup();
+        for (Method method : methods) {
+            final String fieldName = getFieldName(method);
+            if (fieldName == null) {
+                continue;
+            }
+            Preconditions.checkArgument(!getters.containsKey(fieldName), "%s has more than one getter for %s!", pojoClass, fieldName);
+
+            try {
+                // The class itself may not be public.
+                method.setAccessible(true);
+                getters.put(fieldName, lookup.unreflect(method).asType(GETTER_TYPE));
+            }
+            catch (IllegalAccessException iae) {
+                throw new IllegalArgumentException(String.format("Can not access %s", method), iae);
+            }
+        }
+        this.getters = ImmutableMap.copyOf(getters);
+    }
+
+    private static String getFieldName(final Method method)
+    {
+        if (Modifier.isStatic(method.getModifiers()) || method.getParameterTypes().length > 0 || method.getDeclaringClass() == Object.class) {
+            return null;
+        }
+
+        // Covariant and generic getters also show up as bridge methods, the actual getter is found as well.
+        if (method.isBridge() || method.isSynthetic()) {
+            return null;
+        }
+
+        final MongoField mongoField = method.getAnnotation(MongoField.class);
+        if (mongoField != null) {
+            return mongoField.value();
+        }
+
+        final String name = method.getName();
+        final Class<?> returnType = method.getReturnType();
+        if (name.length() > 3 && name.startsWith("get") && returnType != void.class) {
+            return Introspector.decapitalize(name.substring(3));
+        }
+        if (name.length() > 2 && name.startsWith("is") && (returnType == boolean.class || returnType == Boolean.class)) {
+            return Introspector.decapitalize(name.substring(2));
+        }
+        return null;
+    }
+
+    public Class<T> getPojoClass()
+    {
+        return pojoClass;
+    }
+
+    public Set<String> getFieldNames()
+    {
+        return getters.keySet();
+    }
+
+    /**
+     * Returns a DBObject that reads the fields from the POJO when they are accessed. The POJO must not be changed
+     * until the DBObject was written.
+     */
+    public DBObject toDBObject(final T pojo)
+    {
+        Preconditions.checkNotNull(pojo, "pojo must not be null!");
+        return new PojoDBObject(this, pojo);
+    }
+
+    boolean hasField(final String fieldName)
+    {
+        return getters.containsKey(fieldName);
+    }
+
+    Object getValue(final Object pojo, final String fieldName)
+    {
+        final MethodHandle getter = getters.get(fieldName);
+        if (getter == null) {
+            return null;
+        }
+
+        try {
+            return toBsonValue((Object) getter.invokeExact(pojo));
+        }
+        catch (Throwable t) {
+            throw Throwables.propagate(t);
+        }
+    }
+
+    /**
+     * Returns a value that the BSON encoder can write.
+     */
+    @SuppressWarnings("unchecked")
+    static Object toBsonValue(final Object value)
+    {
+        if (value == null || isBsonType(value)) {
+            return value;
+        }
+        if (value instanceof Enum) {
+            return ((Enum<?>) value).name();
+        }
+        if (value instanceof Map) {
+            return Maps.transformValues((Map<Object, Object>) value, TO_BSON_VALUE);
+        }
+        if (value instanceof Iterable) {
+            return Iterables.transform((Iterable<Object>) value, TO_BSON_VALUE);
+        }
+        if (value.getClass().isArray() || hasEncodingHooks(value.getClass())) {
+            return value;
+        }
+        return convert(value);
+    }
+
+    private static boolean hasEncodingHooks(final Class<?> valueClass)
+    {
+        final List<Transformer> encodingHooks = BSON.getEncodingHooks(valueClass);
+        return encodingHooks != null && !encodingHooks.isEmpty();
+    }
+
+    private static boolean isBsonType(final Object value)
+    {
+        for (Class<?> bsonType : BSON_TYPES) {
+            if (bsonType.isInstance(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.BSONObject;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+/**
+ * DBObject view of a POJO. Fields are read from the POJO on every access. Fields that are put into the object, e.g.
+ * an _id assigned by the driver, are kept next to the POJO and take precedence over its fields. Profiled under the
+ * tag of the POJO.
+ */
+final class PojoDBObject implements DBObject, MongoWriterProfileTag
+{
+    private final PojoCodec<?> codec;
+    private final Object pojo;
+
+    /** Fields put into this object, created on first use. */
+    private Map<String, Object> extraFields = null;
+    private boolean partialObject = false;
+
+    PojoDBObject(final PojoCodec<?> codec, final Object pojo)
+    {
+        this.codec = codec;
+        this.pojo = pojo;
+    }
+
+    @Override
+    public Object put(final String key, final Object value)
+    {
+        if (extraFields == null) {
+            extraFields = Maps.newLinkedHashMap();
+        }
+        final Object oldValue = get(key);
+        extraFields.put(key, value);
+        return oldValue;
+    }
+
+    @Override
+    public void putAll(final BSONObject bsonObject)
+    {
+        for (String key : bsonObject.keySet()) {
+            put(key, bsonObject.get(key));
+        }
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public void putAll(final Map map)
+    {
+        for (Object entry : map.entrySet()) {
+            put(((Map.Entry) entry).getKey().toString(), ((Map.Entry) entry).getValue());
+        }
+    }
+
+    @Override
+    public Object get(final String key)
+    {
+        if (extraFields != null && extraFields.containsKey(key)) {
+            return extraFields.get(key);
+        }
+        return codec.getValue(pojo, key);
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Map toMap()
+    {
+        final Map<String, Object> map = Maps.newLinkedHashMap();
+        for (String key : keySet()) {
+            map.put(key, get(key));
+        }
+        return map;
+    }
+
+    @Override
+    public Object removeField(final String key)
+    {
+        throw new UnsupportedOperationException("Can not remove fields from a POJO!");
+    }
+
+    @Override
+    @Deprecated
+    public boolean containsKey(final String key)
+    {
+        return containsField(key);
+    }
+
+    @Override
+    public boolean containsField(final String key)
+    {
+        return codec.hasField(key) || (extraFields != null && extraFields.containsKey(key));
+    }
+
+    @Override
+    public Set<String> keySet()
+    {
+        if (extraFields == null) {
+            return codec.getFieldNames();
+        }
+        return Sets.union(extraFields.keySet(), codec.getFieldNames());
+    }
+
+    @Override
+    public void markAsPartialObject()
+    {
+        partialObject = true;
+    }
+
+    @Override
+    public boolean isPartialObject()
+    {
+        return partialObject;
+    }
+
+    @Override
+    public String getProfileTag()
+    {
+        return ConversionProfiler.tagOf(pojo);
+    }
+
+    @Override
+    public String toString()
+    {
+        return JSON.serialize(this);
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import org.bson.types.ObjectId;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnel;
+import com.google.common.hash.PrimitiveSink;
+
+/**
+ * Remembers the ids of recently written documents. Uses two generations of bloom filters, when the current
+ * generation is full, it replaces the previous one and a new generation is started. So at least the last
+ * expectedIds ids are remembered, with a fixed memory footprint.
+ *
+ * A bloom filter can report false positives, so with a very small probability an id that was never seen is
+ * reported as seen. Not thread safe, only used by the writer thread.
+ */
+final class RecentIdFilter
+{
+    private static final Funnel<Object> ID_FUNNEL = new Funnel<Object>() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void funnel(final Object id, final PrimitiveSink sink) {
+            // The server compares numbers by value, 1 and 1L are the same document, but 1 and "1" are not.
+            final Object key = MongoIds.matchKey(id);
+            if (key instanceof ObjectId) {
+                final ObjectId objectId = (ObjectId) key;
+                sink.putByte((byte) 1).putInt(objectId._time()).putInt(objectId._machine()).putInt(objectId._inc());
+            }
+            else if (key instanceof Long) {
+                sink.putByte((byte) 2).putLong((Long) key);
+            }
+            else if (key instanceof Double) {
+                sink.putByte((byte) 3).putDouble((Double) key);
+            }
+            else {
+                sink.putByte((byte) 4).putString(key.getClass().getName(), Charsets.UTF_8).putByte((byte) 0).putString(key.toString(), Charsets.UTF_8);
+            }
+        }
+    };
+
+    private final int expectedIds;
+    private final double falsePositiveRate;
+
+    private BloomFilter<Object> current;
+    private BloomFilter<Object> previous;
+    private int currentIds = 0;
+
+    RecentIdFilter(final int expectedIds, final double falsePositiveRate)
+    {
+        Preconditions.checkArgument(expectedIds > 0, "expected ids must be positive!");
+        Preconditions.checkArgument(falsePositiveRate > 0.0d && falsePositiveRate < 1.0d, "false positive rate must be between 0 and 1!");
+
+        this.expectedIds = expectedIds;
+        this.falsePositiveRate = falsePositiveRate;
+        this.current = newFilter();
+        this.previous = newFilter();
+    }
+
+    /**
+     * Returns true if the id was (probably) recorded before, without recording it.
+     */
+    boolean mightContain(final Object id)
+    {
+        return current.mightContain(id) || previous.mightContain(id);
+    }
+
+    /**
+     * Records the id.
+     */
+    void add(final Object id)
+    {
+        if (currentIds >= expectedIds) {
+            previous = current;
+            current = newFilter();
+            currentIds = 0;
+        }
+
+        if (current.put(id)) {
+            currentIds++;
+        }
+    }
+
+    private BloomFilter<Object> newFilter()
+    {
+        return BloomFilter.create(ID_FUNNEL, expectedIds, falsePositiveRate);
+    }
+}
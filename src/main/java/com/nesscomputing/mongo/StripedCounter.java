@@ -0,0 +1,69 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter that spreads updates from different threads over multiple cells to avoid contention on a single
+ * value. Updates are cheap, reading the value sums up all cells and is not an atomic snapshot.
+ */
+final class StripedCounter
+{
+    private static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+
+    /** Number of longs between two cells, keeps every cell on its own cache line. */
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    void increment()
+    {
+        add(1L);
+    }
+
+    void add(final long delta)
+    {
+        cells.getAndAdd(index(), delta);
+    }
+
+    long get()
+    {
+        long sum = 0L;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    private static int index()
+    {
+        // Spread the thread ids, consecutive ids would otherwise end up in consecutive cells only.
+        long id = Thread.currentThread().getId();
+        id ^= id >>> 16;
+        id *= 0x9E3779B97F4A7C15L;
+        return ((int) (id >>> 40) & (STRIPES - 1)) * PADDING;
+    }
+
+    private static int stripes(final int processors)
+    {
+        int stripes = 1;
+        while (stripes < processors * 2) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+}
@@ -0,0 +1,630 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONEncoder;
+import org.bson.LazyBSONCallback;
+import org.bson.LazyBSONObject;
+import org.skife.config.TimeSpan;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Closeables;
+import com.mongodb.BasicDBObject;
+import com.mongodb.MongoURI;
+import com.nesscomputing.logging.Log;
+
+/**
+ * Minimal in-process stand-in for a mongod. Speaks enough of the wire protocol for the driver to connect, insert
+ * documents, ask for the last error and query documents added with {@link #addDocuments(String, String, Iterable)}.
+ * Queries only support equality, $in and $gt on top level fields. Tailable cursors see documents added later. Latency and errors can be injected to simulate a slow
+ * or failing server.
+ */
+public class FakeMongoServer
+{
+    private static final Log LOG = Log.findLog();
+
+    private static final int OP_REPLY = 1;
+    private static final int OP_INSERT = 2002;
+    private static final int OP_QUERY = 2004;
+    private static final int OP_GET_MORE = 2005;
+    private static final int OP_KILL_CURSORS = 2007;
+
+    private static final int INSERT_CONTINUE_ON_ERROR = 1;
+
+    /** Error code reported for injected insert failures. */
+    public static final int INJECTED_ERROR_CODE = 99999;
+
+    private static final int QUERY_TAILABLE = 2;
+    private static final int QUERY_AWAIT_DATA = 32;
+    private static final int RESULT_AWAIT_CAPABLE = 8;
+
+    /** Batch size used by mongod if the client does not ask for one. */
+    private static final int DEFAULT_BATCH_SIZE = 101;
+
+    /** Time that a getMore on a tailable cursor waits for new documents. */
+    private static final long AWAIT_DATA_MILLIS = 300L;
+
+    private static final LazyBSONCallback LAZY_CALLBACK = new LazyBSONCallback();
+
+    /**
+     * Receives every document inserted into the server.
+     */
+    public interface InsertListener
+    {
+        void inserted(String collectionName, BSONObject document);
+    }
+
+    private final List<InsertListener> listeners = new CopyOnWriteArrayList<InsertListener>();
+    private final List<Socket> clients = new CopyOnWriteArrayList<Socket>();
+
+    private final AtomicLong documentsInserted = new AtomicLong(0L);
+    private final AtomicLong insertsFailed = new AtomicLong(0L);
+    private final AtomicLong commands = new AtomicLong(0L);
+    private final AtomicLong queries = new AtomicLong(0L);
+    private final AtomicLong getMores = new AtomicLong(0L);
+
+    /** Documents that can be queried, by full collection name. */
+    private final ConcurrentMap<String, List<BSONObject>> documents = new ConcurrentHashMap<String, List<BSONObject>>();
+    private final ConcurrentMap<Long, Cursor> cursors = new ConcurrentHashMap<Long, Cursor>();
+    private final AtomicLong cursorIds = new AtomicLong(0L);
+
+    private volatile long latencyNanos = 0L;
+    private volatile long queryLatencyNanos = 0L;
+    private volatile double errorRate = 0.0d;
+    private final AtomicInteger dropAfterDocuments = new AtomicInteger(-1);
+
+    /** Ids of the inserted documents, by full collection name. A second insert with the same id fails like on a mongod. */
+    private final ConcurrentMap<String, Set<Object>> insertedIds = new ConcurrentHashMap<String, Set<Object>>();
+
+    private ServerSocket serverSocket = null;
+    private Thread acceptThread = null;
+
+    public synchronized void start() throws IOException
+    {
+        start(0);
+    }
+
+    /**
+     * Start the server on a given port, 0 picks a free port. Restarting on a fixed port retries binding for a while,
+     * clients that try to reconnect can hold on to the port briefly.
+     */
+    public synchronized void start(final int port) throws IOException
+    {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5L);
+        while (true) {
+            serverSocket = new ServerSocket();
+            serverSocket.setReuseAddress(true);
+            try {
+                serverSocket.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 50);
+                break;
+            }
+            catch (BindException be) {
+                serverSocket.close();
+                if (port == 0 || System.nanoTime() > deadline) {
+                    throw be;
+                }
+                try {
+                    Thread.sleep(10L);
+                }
+                catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw be;
+                }
+            }
+        }
+
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "fake-mongo-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public synchronized void stop() throws IOException
+    {
+        if (serverSocket != null) {
+            serverSocket.close();
+            serverSocket = null;
+        }
+        for (Socket client : clients) {
+            Closeables.close(client, true);
+        }
+        clients.clear();
+    }
+
+    public int getPort()
+    {
+        return serverSocket.getLocalPort();
+    }
+
+    public MongoURI getMongoUri(final String databaseName)
+    {
+        return new MongoURI(String.format("mongodb://127.0.0.1:%d/%s", getPort(), databaseName));
+    }
+
+    /**
+     * Delay applied before answering a getLastError command.
+     */
+    public void setLatency(final TimeSpan latency)
+    {
+        this.latencyNanos = latency.getUnit().toNanos(latency.getPeriod());
+    }
+
+    /**
+     * Delay applied before answering a query.
+     */
+    public void setQueryLatency(final TimeSpan queryLatency)
+    {
+        this.queryLatencyNanos = queryLatency.getUnit().toNanos(queryLatency.getPeriod());
+    }
+
+    /**
+     * Fraction (0.0 - 1.0) of inserts that report an error through getLastError. The error is reported in the err
+     * field of a successful command reply, with code {@link FakeMongoServer#INJECTED_ERROR_CODE}.
+     */
+    public void setErrorRate(final double errorRate)
+    {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Close the client connection during the next insert, after storing the given number of its documents and before
+     * the client can ask for the last error. The client sees a network error for a write that was partially applied.
+     */
+    public void dropConnectionDuringInsert(final int storedDocuments)
+    {
+        dropAfterDocuments.set(storedDocuments);
+    }
+
+    public void addListener(final InsertListener listener)
+    {
+        listeners.add(listener);
+    }
+
+    public long getDocumentsInserted()
+    {
+        return documentsInserted.get();
+    }
+
+    public long getInsertsFailed()
+    {
+        return insertsFailed.get();
+    }
+
+    public long getCommands()
+    {
+        return commands.get();
+    }
+
+    public long getQueries()
+    {
+        return queries.get();
+    }
+
+    public long getGetMores()
+    {
+        return getMores.get();
+    }
+
+    public int getOpenCursors()
+    {
+        return cursors.size();
+    }
+
+    private Set<Object> getInsertedIds(final String collectionName)
+    {
+        insertedIds.putIfAbsent(collectionName, Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>()));
+        return insertedIds.get(collectionName);
+    }
+
+    /**
+     * Add documents that are returned by queries on a collection.
+     */
+    public void addDocuments(final String databaseName, final String collectionName, final Iterable<? extends BSONObject> newDocuments)
+    {
+        getDocuments(databaseName + "." + collectionName).addAll(Lists.newArrayList(newDocuments));
+    }
+
+    private List<BSONObject> getDocuments(final String fullName)
+    {
+        documents.putIfAbsent(fullName, new CopyOnWriteArrayList<BSONObject>());
+        return documents.get(fullName);
+    }
+
+    private void acceptLoop()
+    {
+        try {
+            while (true) {
+                final Socket client = serverSocket.accept();
+                client.setTcpNoDelay(true);
+                clients.add(client);
+
+                final Thread clientThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(client);
+                    }
+                }, "fake-mongo-client-" + client.getPort());
+                clientThread.setDaemon(true);
+                clientThread.start();
+            }
+        }
+        catch (IOException ioe) {
+            LOG.trace(ioe, "Accept loop exiting");
+        }
+    }
+
+    private void serve(final Socket client)
+    {
+        final Random random = new Random();
+        String lastError = null;
+        int lastErrorCode = 0;
+
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+            final OutputStream out = new BufferedOutputStream(client.getOutputStream());
+
+            while (true) {
+                final byte [] message = readMessage(in);
+                final ByteBuffer buffer = ByteBuffer.wrap(message).order(ByteOrder.LITTLE_ENDIAN);
+                final int requestId = buffer.getInt(4);
+                final int opCode = buffer.getInt(12);
+                buffer.position(16);
+
+                switch (opCode) {
+                case OP_INSERT:
+                    final boolean continueOnError = (buffer.getInt() & INSERT_CONTINUE_ON_ERROR) != 0;
+                    final String collectionName = readCString(buffer);
+                    final Set<Object> ids = getInsertedIds(collectionName);
+                    lastError = null;
+                    lastErrorCode = 0;
+                    final int dropAfter = dropAfterDocuments.getAndSet(-1);
+                    int count = 0;
+                    while (buffer.hasRemaining() && count != dropAfter) {
+                        final int offset = buffer.position();
+                        final BSONObject document = new LazyBSONObject(message, offset, LAZY_CALLBACK);
+                        buffer.position(offset + buffer.getInt(offset));
+
+                        final Object id = document.get("_id");
+                        if (id != null && !ids.add(id)) {
+                            lastError = String.format("E11000 duplicate key error index: %s.$_id_  dup key: { : %s }", collectionName, id);
+                            lastErrorCode = 11000;
+                            if (!continueOnError) {
+                                break;
+                            }
+                            continue;
+                        }
+                        for (InsertListener listener : listeners) {
+                            listener.inserted(collectionName, document);
+                        }
+                        count++;
+                    }
+                    if (errorRate > 0.0d && random.nextDouble() < errorRate) {
+                        insertsFailed.addAndGet(count);
+                        lastError = "injected failure";
+                        lastErrorCode = INJECTED_ERROR_CODE;
+                    }
+                    else {
+                        documentsInserted.addAndGet(count);
+                    }
+                    if (dropAfter >= 0) {
+                        client.close();
+                    }
+                    break;
+
+                case OP_QUERY:
+                    final int queryFlags = buffer.getInt();
+                    final String queryCollection = readCString(buffer);
+                    buffer.getInt(); // skip
+                    final int numberToReturn = buffer.getInt();
+                    final BSONObject query = new LazyBSONObject(message, buffer.position(), LAZY_CALLBACK);
+
+                    if (queryCollection.endsWith(".$cmd")) {
+                        commands.incrementAndGet();
+                        final String command = query.keySet().iterator().next();
+                        if ("getlasterror".equalsIgnoreCase(command)) {
+                            final long latency = latencyNanos;
+                            if (latency > 0L) {
+                                TimeUnit.NANOSECONDS.sleep(latency);
+                            }
+                            // Like a mongod, the command itself succeeds and reports the failed write in err.
+                            reply(out, requestId, lastError == null
+                                  ? new BasicDBObject("ok", 1.0d).append("err", null).append("n", 0)
+                                  : new BasicDBObject("ok", 1.0d).append("err", lastError).append("code", lastErrorCode).append("n", 0));
+                            lastError = null;
+                            lastErrorCode = 0;
+                        }
+                        else if ("ismaster".equalsIgnoreCase(command)) {
+                            reply(out, requestId, new BasicDBObject("ismaster", true).append("maxBsonObjectSize", 16 * 1024 * 1024).append("ok", 1.0d));
+                        }
+                        else {
+                            reply(out, requestId, new BasicDBObject("ok", 1.0d));
+                        }
+                    }
+                    else {
+                        queries.incrementAndGet();
+                        final long queryLatency = queryLatencyNanos;
+                        if (queryLatency > 0L) {
+                            TimeUnit.NANOSECONDS.sleep(queryLatency);
+                        }
+                        final BSONObject criteria = query.containsField("$query") ? (BSONObject) query.get("$query") : query;
+                        final Cursor queryCursor = (queryFlags & QUERY_TAILABLE) != 0
+                            ? new Cursor(getDocuments(queryCollection), criteria, true, (queryFlags & QUERY_AWAIT_DATA) != 0)
+                            : new Cursor(find(queryCollection, criteria), null, false, false);
+                        replyBatch(out, requestId, 0L, queryCursor, numberToReturn);
+                    }
+                    break;
+
+                case OP_GET_MORE:
+                    getMores.incrementAndGet();
+                    buffer.getInt(); // zero
+                    readCString(buffer);
+                    final int batchSize = buffer.getInt();
+                    final long cursorId = buffer.getLong();
+                    final Cursor cursor = cursors.remove(cursorId);
+                    if (cursor == null) {
+                        reply(out, requestId);
+                    }
+                    else {
+                        replyBatch(out, requestId, cursorId, cursor, batchSize);
+                    }
+                    break;
+
+                case OP_KILL_CURSORS:
+                    buffer.getInt(); // zero
+                    final int cursorCount = buffer.getInt();
+                    for (int i = 0; i < cursorCount; i++) {
+                        cursors.remove(buffer.getLong());
+                    }
+                    break;
+
+                default:
+                    LOG.trace("Ignoring op code %d", opCode);
+                    break;
+                }
+            }
+        }
+        catch (EOFException eofe) {
+            LOG.trace("Client disconnected");
+        }
+        catch (SocketException se) {
+            LOG.trace(se, "Client connection closed");
+        }
+        catch (IOException ioe) {
+            LOG.warn(ioe, "While serving client");
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            clients.remove(client);
+            try {
+                Closeables.close(client, true);
+            }
+            catch (IOException ioe) {
+                // swallowed.
+            }
+        }
+    }
+
+    private List<BSONObject> find(final String collectionName, final BSONObject criteria)
+    {
+        final List<BSONObject> collection = documents.get(collectionName);
+        if (collection == null) {
+            return Collections.emptyList();
+        }
+
+        final List<BSONObject> result = Lists.newArrayList();
+        for (BSONObject document : collection) {
+            if (matches(document, criteria)) {
+                result.add(document);
+            }
+        }
+        return result;
+    }
+
+    private static boolean matches(final BSONObject document, final BSONObject criteria)
+    {
+        for (String key : criteria.keySet()) {
+            final Object expected = criteria.get(key);
+            final Object value = document.get(key);
+            if (expected instanceof BSONObject && ((BSONObject) expected).containsField("$in")) {
+                boolean found = false;
+                for (Object candidate : (Iterable<?>) ((BSONObject) expected).get("$in")) {
+                    found |= valueEquals(candidate, value);
+                }
+                if (!found) {
+                    return false;
+                }
+            }
+            else if (expected instanceof BSONObject && ((BSONObject) expected).containsField("$gt")) {
+                if (!greaterThan(value, ((BSONObject) expected).get("$gt"))) {
+                    return false;
+                }
+            }
+            else if (!valueEquals(expected, value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean valueEquals(final Object expected, final Object value)
+    {
+        if (expected instanceof Number && value instanceof Number) {
+            return ((Number) expected).doubleValue() == ((Number) value).doubleValue();
+        }
+        return expected == null ? value == null : expected.equals(value);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static boolean greaterThan(final Object value, final Object bound)
+    {
+        if (value instanceof Number && bound instanceof Number) {
+            return ((Number) value).doubleValue() > ((Number) bound).doubleValue();
+        }
+        if (value instanceof Comparable && bound != null && value.getClass() == bound.getClass()) {
+            return ((Comparable<Object>) value).compareTo(bound) > 0;
+        }
+        return false;
+    }
+
+    /**
+     * Reply with the next batch of a cursor. Keeps the cursor for the rest unless the client asked for a single batch.
+     * A tailable cursor stays open until its collection is dropped, like mongod it is not opened on an empty collection.
+     */
+    private void replyBatch(final OutputStream out, final int responseTo, final long currentCursorId, final Cursor cursor, final int numberToReturn) throws IOException, InterruptedException
+    {
+        final boolean first = currentCursorId == 0L;
+        final int batchSize = numberToReturn == 0 ? DEFAULT_BATCH_SIZE : Math.abs(numberToReturn);
+        List<BSONObject> batch = cursor.next(batchSize);
+        if (batch.isEmpty() && cursor.awaitData && !first) {
+            final long deadline = System.currentTimeMillis() + AWAIT_DATA_MILLIS;
+            while (batch.isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10L);
+                batch = cursor.next(batchSize);
+            }
+        }
+
+        long cursorId = 0L;
+        final boolean open = cursor.tailable ? !cursor.documents.isEmpty() : cursor.hasMore();
+        if (open && numberToReturn >= 0 && !(first && numberToReturn == 1)) {
+            cursorId = first ? cursorIds.incrementAndGet() : currentCursorId;
+            cursors.put(cursorId, cursor);
+        }
+        reply(out, responseTo, cursor.awaitData ? RESULT_AWAIT_CAPABLE : 0, cursorId, batch.toArray(new BSONObject[batch.size()]));
+    }
+
+    private static byte [] readMessage(final DataInputStream in) throws IOException
+    {
+        final byte [] lengthBytes = new byte[4];
+        in.readFully(lengthBytes);
+        final int length = ByteBuffer.wrap(lengthBytes).order(ByteOrder.LITTLE_ENDIAN).getInt();
+
+        final byte [] message = new byte[length];
+        System.arraycopy(lengthBytes, 0, message, 0, 4);
+        in.readFully(message, 4, length - 4);
+        return message;
+    }
+
+    private static String readCString(final ByteBuffer buffer)
+    {
+        final int start = buffer.position();
+        while (buffer.get() != 0) {
+            // scan for the terminating 0 byte.
+        }
+        return new String(buffer.array(), start, buffer.position() - start - 1, Charsets.UTF_8);
+    }
+
+    private static void reply(final OutputStream out, final int responseTo, final BSONObject ... documents) throws IOException
+    {
+        reply(out, responseTo, 0, 0L, documents);
+    }
+
+    private static void reply(final OutputStream out, final int responseTo, final int responseFlags, final long cursorId, final BSONObject ... documents) throws IOException
+    {
+        final BasicBSONEncoder encoder = new BasicBSONEncoder();
+        final byte [][] encoded = new byte[documents.length][];
+        int length = 36;
+        for (int i = 0; i < documents.length; i++) {
+            encoded[i] = encoder.encode(documents[i]);
+            length += encoded[i].length;
+        }
+
+        final ByteBuffer header = ByteBuffer.allocate(36).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(length);
+        header.putInt(0); // request id
+        header.putInt(responseTo);
+        header.putInt(OP_REPLY);
+        header.putInt(responseFlags);
+        header.putLong(cursorId);
+        header.putInt(0); // starting from
+        header.putInt(documents.length);
+
+        out.write(header.array());
+        for (byte [] document : encoded) {
+            out.write(document);
+        }
+        out.flush();
+    }
+
+    /**
+     * Position in the result of a query. Tailable cursors scan the live collection and match while they scan.
+     */
+    private static final class Cursor
+    {
+        private final List<BSONObject> documents;
+        private final BSONObject criteria;
+        private final boolean tailable;
+        private final boolean awaitData;
+        private int position = 0;
+
+        private Cursor(final List<BSONObject> documents, final BSONObject criteria, final boolean tailable, final boolean awaitData)
+        {
+            this.documents = documents;
+            this.criteria = criteria;
+            this.tailable = tailable;
+            this.awaitData = awaitData;
+        }
+
+        private List<BSONObject> next(final int batchSize)
+        {
+            final List<BSONObject> batch = Lists.newArrayList();
+            while (batch.size() < batchSize && position < documents.size()) {
+                final BSONObject document = documents.get(position++);
+                if (criteria == null || matches(document, criteria)) {
+                    batch.add(document);
+                }
+            }
+            return batch;
+        }
+
+        private boolean hasMore()
+        {
+            return position < documents.size();
+        }
+    }
+}
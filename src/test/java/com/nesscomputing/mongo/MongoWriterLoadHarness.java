@@ -0,0 +1,312 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.BSONObject;
+import org.skife.config.TimeSpan;
+
+import com.google.common.base.Preconditions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.MongoURI;
+import com.nesscomputing.logging.Log;
+
+/**
+ * Drives a MongoWriter through a {@link FakeMongoServer} and reports throughput and latency. Runs from a unit test
+ * or standalone through {@link MongoWriterLoadHarness#main(String[])}, configured by harness.* system properties.
+ */
+public class MongoWriterLoadHarness
+{
+    private static final Log LOG = Log.findLog();
+
+    private static final String COLLECTION_NAME = "load";
+    private static final String TIMESTAMP_FIELD = "ts";
+
+    private int producers = 4;
+    private int documentsPerProducer = 100000;
+    private int queueLength = 10000;
+    private int queueBytes = 0;
+    private TimeSpan tickerTime = new TimeSpan("10ms");
+    private TimeSpan latency = new TimeSpan("0ms");
+    private double errorRate = 0.0d;
+    private TimeSpan maxWait = new TimeSpan("5m");
+
+    public static void main(final String [] args) throws Exception
+    {
+        final MongoWriterLoadHarness harness = new MongoWriterLoadHarness()
+            .withProducers(Integer.getInteger("harness.producers", 4))
+            .withDocumentsPerProducer(Integer.getInteger("harness.documents", 100000))
+            .withQueueLength(Integer.getInteger("harness.queue-length", 10000))
+            .withQueueBytes(Integer.getInteger("harness.queue-bytes", 0))
+            .withTickerTime(new TimeSpan(System.getProperty("harness.ticker-time", "10ms")))
+            .withLatency(new TimeSpan(System.getProperty("harness.latency", "0ms")))
+            .withErrorRate(Double.parseDouble(System.getProperty("harness.error-rate", "0.0")));
+
+        System.out.println(harness.run());
+    }
+
+    public MongoWriterLoadHarness withProducers(final int producers)
+    {
+        this.producers = producers;
+        return this;
+    }
+
+    public MongoWriterLoadHarness withDocumentsPerProducer(final int documentsPerProducer)
+    {
+        this.documentsPerProducer = documentsPerProducer;
+        return this;
+    }
+
+    public MongoWriterLoadHarness withQueueLength(final int queueLength)
+    {
+        this.queueLength = queueLength;
+        return this;
+    }
+
+    public MongoWriterLoadHarness withQueueBytes(final int queueBytes)
+    {
+        this.queueBytes = queueBytes;
+        return this;
+    }
+
+    public MongoWriterLoadHarness withTickerTime(final TimeSpan tickerTime)
+    {
+        this.tickerTime = tickerTime;
+        return this;
+    }
+
+    public MongoWriterLoadHarness withLatency(final TimeSpan latency)
+    {
+        this.latency = latency;
+        return this;
+    }
+
+    public MongoWriterLoadHarness withErrorRate(final double errorRate)
+    {
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    public MongoWriterLoadHarness withMaxWait(final TimeSpan maxWait)
+    {
+        this.maxWait = maxWait;
+        return this;
+    }
+
+    public Result run() throws Exception
+    {
+        final int documents = producers * documentsPerProducer;
+        final long [] endToEndLatencies = new long[documents];
+        final AtomicInteger endToEndCount = new AtomicInteger(0);
+
+        final FakeMongoServer server = new FakeMongoServer();
+        server.setLatency(latency);
+        server.setErrorRate(errorRate);
+        server.addListener(new FakeMongoServer.InsertListener() {
+            @Override
+            public void inserted(final String collectionName, final BSONObject document) {
+                final long now = System.nanoTime();
+                final int index = endToEndCount.getAndIncrement();
+                if (index < endToEndLatencies.length) {
+                    endToEndLatencies[index] = now - ((Number) document.get(TIMESTAMP_FIELD)).longValue();
+                }
+            }
+        });
+        server.start();
+
+        final MongoWriter writer = new MongoWriter(new HarnessConfig(server.getMongoUri("harness")));
+        try {
+            writer.start();
+
+            final long [][] enqueueLatencies = new long[producers][documentsPerProducer];
+            final CountDownLatch startLatch = new CountDownLatch(1);
+            final Thread [] producerThreads = new Thread[producers];
+
+            for (int i = 0; i < producers; i++) {
+                final long [] latencies = enqueueLatencies[i];
+                final int producer = i;
+                producerThreads[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            startLatch.await();
+                            for (int j = 0; j < documentsPerProducer; j++) {
+                                final long start = System.nanoTime();
+                                writer.write(new BasicDBObject(TIMESTAMP_FIELD, start).append("producer", producer).append("sequence", j));
+                                latencies[j] = System.nanoTime() - start;
+                            }
+                        }
+                        catch (InterruptedException ie) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }, "harness-producer-" + i);
+                producerThreads[i].start();
+            }
+
+            final long startTime = System.nanoTime();
+            startLatch.countDown();
+            for (Thread producerThread : producerThreads) {
+                producerThread.join();
+            }
+
+            final long deadline = startTime + maxWait.getMillis() * 1000000L;
+            while (writer.getOpsSent() + writer.getOpsLost() < documents) {
+                Preconditions.checkState(System.nanoTime() < deadline, "Writer did not finish within %s", maxWait);
+                Thread.sleep(1L);
+            }
+            final long durationNanos = System.nanoTime() - startTime;
+
+            final long [] allEnqueueLatencies = new long[documents];
+            for (int i = 0; i < producers; i++) {
+                System.arraycopy(enqueueLatencies[i], 0, allEnqueueLatencies, i * documentsPerProducer, documentsPerProducer);
+            }
+
+            final Result result = new Result(documents, writer.getOpsSent(), writer.getOpsLost(), durationNanos,
+                                             allEnqueueLatencies, Arrays.copyOf(endToEndLatencies, Math.min(endToEndCount.get(), documents)));
+            LOG.info("%s", result);
+            return result;
+        }
+        finally {
+            writer.stop();
+            server.stop();
+        }
+    }
+
+    /**
+     * Outcome of a harness run. All latencies are in nanoseconds.
+     */
+    public static class Result
+    {
+        private final int documents;
+        private final long sent;
+        private final long lost;
+        private final long durationNanos;
+        private final long [] enqueueLatencies;
+        private final long [] endToEndLatencies;
+
+        Result(final int documents, final long sent, final long lost, final long durationNanos, final long [] enqueueLatencies, final long [] endToEndLatencies)
+        {
+            this.documents = documents;
+            this.sent = sent;
+            this.lost = lost;
+            this.durationNanos = durationNanos;
+            this.enqueueLatencies = enqueueLatencies;
+            this.endToEndLatencies = endToEndLatencies;
+            Arrays.sort(this.enqueueLatencies);
+            Arrays.sort(this.endToEndLatencies);
+        }
+
+        public int getDocuments()
+        {
+            return documents;
+        }
+
+        public long getSent()
+        {
+            return sent;
+        }
+
+        public long getLost()
+        {
+            return lost;
+        }
+
+        public double getDocumentsPerSecond()
+        {
+            return documents * 1e9d / durationNanos;
+        }
+
+        public long getEnqueueLatency(final double percentile)
+        {
+            return percentile(enqueueLatencies, percentile);
+        }
+
+        public long getEndToEndLatency(final double percentile)
+        {
+            return percentile(endToEndLatencies, percentile);
+        }
+
+        private static long percentile(final long [] sorted, final double percentile)
+        {
+            if (sorted.length == 0) {
+                return 0L;
+            }
+            final int index = (int) Math.ceil(percentile / 100.0d * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%d documents (%d sent, %d lost) in %d ms, %.0f docs/sec; "
+                                 + "enqueue p50/p99/max: %d/%d/%d us; end-to-end p50/p99/max: %d/%d/%d us",
+                                 documents, sent, lost, TimeUnit.NANOSECONDS.toMillis(durationNanos), getDocumentsPerSecond(),
+                                 getEnqueueLatency(50) / 1000L, getEnqueueLatency(99) / 1000L, getEnqueueLatency(100) / 1000L,
+                                 getEndToEndLatency(50) / 1000L, getEndToEndLatency(99) / 1000L, getEndToEndLatency(100) / 1000L);
+        }
+    }
+
+    private class HarnessConfig extends MongoWriterConfig
+    {
+        private final MongoURI mongoUri;
+
+        HarnessConfig(final MongoURI mongoUri)
+        {
+            this.mongoUri = mongoUri;
+        }
+
+        @Override
+        public boolean isEnabled()
+        {
+            return true;
+        }
+
+        @Override
+        public int getQueueLength()
+        {
+            return queueLength;
+        }
+
+        @Override
+        public int getQueueBytes()
+        {
+            return queueBytes;
+        }
+
+        @Override
+        public TimeSpan getTickerTime()
+        {
+            return tickerTime;
+        }
+
+        @Override
+        public MongoURI getMongoUri()
+        {
+            return mongoUri;
+        }
+
+        @Override
+        public String getCollectionName()
+        {
+            return COLLECTION_NAME;
+        }
+    }
+}
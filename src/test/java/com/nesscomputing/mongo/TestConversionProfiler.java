@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestConversionProfiler
+{
+    @Test
+    public void testSampling()
+    {
+        Assert.assertFalse(new ConversionProfiler(0).shouldSample());
+        Assert.assertTrue(new ConversionProfiler(1).shouldSample());
+
+        final ConversionProfiler profiler = new ConversionProfiler(10);
+        int sampled = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (profiler.shouldSample()) {
+                sampled++;
+            }
+        }
+        Assert.assertTrue(sampled > 500 && sampled < 1500);
+    }
+
+    @Test
+    public void testTopTags()
+    {
+        final ConversionProfiler profiler = new ConversionProfiler(1);
+        profiler.record("cheap", 1000L, 10);
+        profiler.record("cheap", 3000L, 30);
+        profiler.record(new Tagged("expensive"), 50000L, 1000);
+
+        final TabularData table = profiler.getTopTags(20);
+        Assert.assertEquals(2, table.size());
+
+        final CompositeData cheap = table.get(new Object [] {String.class.getName()});
+        Assert.assertEquals(2L, cheap.get("samples"));
+        Assert.assertEquals(2L, cheap.get("avgMicros"));
+        Assert.assertEquals(3L, cheap.get("maxMicros"));
+        Assert.assertEquals(20L, cheap.get("avgBytes"));
+        Assert.assertEquals(30L, cheap.get("maxBytes"));
+
+        final CompositeData expensive = table.get(new Object [] {"expensive"});
+        Assert.assertEquals(1L, expensive.get("samples"));
+        Assert.assertEquals(50L, expensive.get("totalMicros"));
+
+        Assert.assertEquals(1, profiler.getTopTags(1).size());
+        Assert.assertNotNull(profiler.getTopTags(1).get(new Object [] {"expensive"}));
+
+        profiler.reset();
+        Assert.assertTrue(profiler.getTopTags(20).isEmpty());
+    }
+
+    @Test
+    public void testTagsAreBounded()
+    {
+        final ConversionProfiler profiler = new ConversionProfiler(1);
+        for (int i = 0; i < ConversionProfiler.MAX_TAGS + 100; i++) {
+            profiler.record(new Tagged("tag-" + i), 1000L, 10);
+        }
+
+        final TabularData table = profiler.getTopTags(Integer.MAX_VALUE);
+        Assert.assertEquals(ConversionProfiler.MAX_TAGS + 1, table.size());
+        Assert.assertEquals(100L, table.get(new Object [] {ConversionProfiler.OTHER_TAG}).get("samples"));
+    }
+
+    private static final class Tagged implements MongoWriterProfileTag
+    {
+        private final String tag;
+
+        private Tagged(final String tag)
+        {
+            this.tag = tag;
+        }
+
+        @Override
+        public String getProfileTag()
+        {
+            return tag;
+        }
+    }
+}
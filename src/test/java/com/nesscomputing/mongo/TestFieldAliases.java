@@ -0,0 +1,124 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.io.BasicOutputBuffer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Stage;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+public class TestFieldAliases
+{
+    private static final FieldAliases ALIASES = FieldAliases.of(ImmutableMap.of("description", "d", "timestamp", "t"));
+
+    private static DBObject createObject()
+    {
+        final BasicDBObject nested = new BasicDBObject("description", "nested").append("other", 2);
+        return new BasicDBObject("_id", "id").append("description", "top").append("timestamp", 1L)
+            .append("nested", nested)
+            .append("list", ImmutableList.of(new BasicDBObject("timestamp", 3L)));
+    }
+
+    private static byte [] encode(final FieldAliases fieldAliases, final DBObject dbObject)
+    {
+        final BasicOutputBuffer buffer = new BasicOutputBuffer();
+        fieldAliases.getEncoderFactory().create().writeObject(buffer, dbObject);
+        return buffer.toByteArray();
+    }
+
+    @Test
+    public void testRoundTrip()
+    {
+        final DBObject dbObject = createObject();
+        final byte [] compacted = encode(ALIASES, dbObject);
+        Assert.assertTrue(compacted.length < encode(FieldAliases.NONE, dbObject).length);
+
+        final DBObject stored = FieldAliases.NONE.getDecoderFactory().create().decode(compacted, (DBCollection) null);
+        Assert.assertEquals("top", stored.get("d"));
+        Assert.assertNull(stored.get("description"));
+        Assert.assertEquals("nested", ((DBObject) stored.get("nested")).get("d"));
+
+        final DBObject decoded = ALIASES.getDecoderFactory().create().decode(compacted, (DBCollection) null);
+        Assert.assertEquals(dbObject.toString(), decoded.toString());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testNoIdAlias()
+    {
+        FieldAliases.of(ImmutableMap.of("_id", "i"));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testDuplicateAlias()
+    {
+        FieldAliases.of(ImmutableMap.of("description", "d", "data", "d"));
+    }
+
+    @Test
+    public void testBinder()
+    {
+        final Injector injector = Guice.createInjector(Stage.PRODUCTION, new AbstractModule() {
+            @Override
+            public void configure() {
+                FieldAliasBinder.bindFieldAlias(binder(), "events", "description").toInstance("d");
+                FieldAliasBinder.bindFieldAlias(binder(), "events", "timestamp").toInstance("t");
+            }
+        });
+
+        final FieldAliases aliases = FieldAliasBinder.getFieldAliases(injector, "events");
+        Assert.assertEquals("d", aliases.compact("description"));
+        Assert.assertEquals("timestamp", aliases.expand("t"));
+        Assert.assertEquals("other", aliases.compact("other"));
+        Assert.assertSame(FieldAliases.NONE, FieldAliasBinder.getFieldAliases(injector, "other"));
+    }
+
+    @Test
+    public void testOffHeapQueue() throws Exception
+    {
+        final OffHeapWriteQueue queue = new OffHeapWriteQueue(4096, ALIASES.getEncoderFactory());
+        queue.offer(createObject(), null);
+
+        final List<Object> drained = new ArrayList<Object>();
+        Assert.assertEquals(1, queue.drainTo(drained));
+        final DBObject stored = (DBObject) drained.get(0);
+        Assert.assertEquals("top", stored.get("d"));
+        Assert.assertEquals(1L, stored.get("t"));
+        Assert.assertFalse(stored.containsField("description"));
+    }
+
+    @Test
+    public void testHeapQueue()
+    {
+        final HeapWriteQueue queue = new HeapWriteQueue(10, ALIASES.getEncoderFactory());
+        final BasicOutputBuffer buffer = new BasicOutputBuffer();
+        queue.createEncoder().writeObject(buffer, createObject());
+
+        final DBObject stored = FieldAliases.NONE.getDecoderFactory().create().decode(buffer.toByteArray(), (DBCollection) null);
+        Assert.assertEquals("top", stored.get("d"));
+    }
+}
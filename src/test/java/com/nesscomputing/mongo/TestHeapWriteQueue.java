@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.skife.config.TimeSpan;
+
+import com.google.common.collect.Lists;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+public class TestHeapWriteQueue
+{
+    private static final TimeSpan TIMEOUT = new TimeSpan("10ms");
+
+    @Test
+    public void testOrderAcrossWrap() throws Exception
+    {
+        final HeapWriteQueue queue = new HeapWriteQueue(4);
+        final List<Object> drained = Lists.newArrayList();
+
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 3; i++) {
+                Assert.assertTrue(queue.offer(new BasicDBObject("value", i), TIMEOUT));
+            }
+            Assert.assertEquals(3, queue.drainTo(drained));
+            for (int i = 0; i < 3; i++) {
+                Assert.assertEquals(i, ((DBObject) drained.get(i)).get("value"));
+            }
+            drained.clear();
+        }
+    }
+
+    @Test
+    public void testGrow() throws Exception
+    {
+        final HeapWriteQueue queue = fill(new HeapWriteQueue(4));
+        Assert.assertFalse(queue.offer(new BasicDBObject(), TIMEOUT));
+
+        queue.setCapacity(8);
+        Assert.assertEquals(8, queue.getCapacity());
+
+        for (int i = 4; i < 8; i++) {
+            Assert.assertTrue(queue.offer(new BasicDBObject("value", i), TIMEOUT));
+        }
+        Assert.assertFalse(queue.offer(new BasicDBObject(), TIMEOUT));
+        assertDrained(queue, 8);
+    }
+
+    @Test
+    public void testShrink() throws Exception
+    {
+        final HeapWriteQueue queue = fill(new HeapWriteQueue(4));
+
+        queue.setCapacity(2);
+        Assert.assertEquals(2, queue.getCapacity());
+        Assert.assertEquals(4, queue.size());
+
+        // The content is kept, but no new elements are accepted.
+        Assert.assertFalse(queue.offer(new BasicDBObject(), TIMEOUT));
+        assertDrained(queue, 4);
+
+        Assert.assertTrue(queue.offer(new BasicDBObject(), TIMEOUT));
+        Assert.assertTrue(queue.offer(new BasicDBObject(), TIMEOUT));
+        Assert.assertFalse(queue.offer(new BasicDBObject(), TIMEOUT));
+    }
+
+    private static HeapWriteQueue fill(final HeapWriteQueue queue) throws InterruptedException
+    {
+        for (int i = 0; i < queue.getCapacity(); i++) {
+            Assert.assertTrue(queue.offer(new BasicDBObject("value", i), TIMEOUT));
+        }
+        return queue;
+    }
+
+    private static void assertDrained(final HeapWriteQueue queue, final int count)
+    {
+        final List<Object> drained = Lists.newArrayList();
+        Assert.assertEquals(count, queue.drainTo(drained));
+        for (int i = 0; i < count; i++) {
+            Assert.assertEquals(i, ((DBObject) drained.get(i)).get("value"));
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Set;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONEncoder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.skife.config.TimeSpan;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.Sets;
+import com.mongodb.BasicDBObject;
+import com.mongodb.MongoURI;
+
+public class TestMongoBulkLoader
+{
+    private static final int DOCUMENTS = 5000;
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final Set<Integer> inserted = Sets.newConcurrentHashSet();
+
+    private FakeMongoServer server = null;
+    private MongoWriter writer = null;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        server = new FakeMongoServer();
+        server.addListener(new FakeMongoServer.InsertListener() {
+            @Override
+            public void inserted(final String collectionName, final BSONObject document) {
+                inserted.add(((Number) document.get("seq")).intValue());
+            }
+        });
+        server.start();
+
+        final MongoURI mongoUri = server.getMongoUri("loader");
+        writer = new MongoWriter(new MongoWriterConfig() {
+            @Override
+            public boolean isEnabled() {
+                return true;
+            }
+
+            @Override
+            public int getQueueLength() {
+                // Much smaller than the file, the loader must wait for the writer.
+                return 200;
+            }
+
+            @Override
+            public TimeSpan getTickerTime() {
+                return new TimeSpan("5ms");
+            }
+
+            @Override
+            public MongoURI getMongoUri() {
+                return mongoUri;
+            }
+
+            @Override
+            public String getCollectionName() {
+                return "documents";
+            }
+        });
+        writer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        writer.stop();
+        server.stop();
+    }
+
+    private File writeJsonFile(final long [] offsets) throws IOException
+    {
+        final File file = temporaryFolder.newFile("dump.json");
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            long offset = 0L;
+            for (int i = 0; i < DOCUMENTS; i++) {
+                offsets[i] = offset;
+                final byte [] line = String.format("{ \"seq\" : %d , \"name\" : \"document %d\" }\n", i, i).getBytes(Charsets.UTF_8);
+                out.write(line);
+                offset += line.length;
+            }
+            out.write("this is not json\n".getBytes(Charsets.UTF_8));
+        }
+        finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private void waitForInserts(final int count) throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + 10000L;
+        while (inserted.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        Assert.assertEquals(count, inserted.size());
+    }
+
+    @Test
+    public void testLoadJson() throws Exception
+    {
+        final File file = writeJsonFile(new long[DOCUMENTS]);
+
+        final MongoBulkLoader loader = new MongoBulkLoader(writer, MongoBulkLoader.Format.NDJSON).withParallelism(4).withChunkSize(4096);
+        Assert.assertEquals(file.length(), loader.load(file));
+        Assert.assertEquals(DOCUMENTS, loader.getDocuments());
+        Assert.assertEquals(1L, loader.getParseErrors());
+
+        waitForInserts(DOCUMENTS);
+    }
+
+    @Test
+    public void testResume() throws Exception
+    {
+        final long [] offsets = new long[DOCUMENTS];
+        final File file = writeJsonFile(offsets);
+
+        final MongoBulkLoader loader = new MongoBulkLoader(writer, MongoBulkLoader.Format.NDJSON).withStartOffset(offsets[DOCUMENTS - 100]);
+        Assert.assertEquals(file.length(), loader.load(file));
+        Assert.assertEquals(100L, loader.getDocuments());
+
+        waitForInserts(100);
+        Assert.assertTrue(inserted.contains(DOCUMENTS - 100));
+        Assert.assertFalse(inserted.contains(DOCUMENTS - 101));
+    }
+
+    @Test
+    public void testSkipsDocumentsTheWriterDrops() throws Exception
+    {
+        final MongoURI mongoUri = server.getMongoUri("loader");
+        final MongoWriter smallWriter = new MongoWriter(new MongoWriterConfig() {
+            @Override
+            public boolean isEnabled() {
+                return true;
+            }
+
+            @Override
+            public int getQueueBytes() {
+                return 1024;
+            }
+
+            @Override
+            public TimeSpan getTickerTime() {
+                return new TimeSpan("5ms");
+            }
+
+            @Override
+            public MongoURI getMongoUri() {
+                return mongoUri;
+            }
+
+            @Override
+            public String getCollectionName() {
+                return "documents";
+            }
+        });
+        smallWriter.start();
+
+        final File file = temporaryFolder.newFile("large.json");
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write("{ \"seq\" : 0 }\n".getBytes(Charsets.UTF_8));
+            out.write(String.format("{ \"seq\" : 1 , \"name\" : \"%s\" }\n", Strings.repeat("x", 2048)).getBytes(Charsets.UTF_8));
+            out.write("{ \"seq\" : 2 }\n".getBytes(Charsets.UTF_8));
+        }
+        finally {
+            out.close();
+        }
+
+        try {
+            // The large document never fits into the queue, it is skipped instead of retried forever.
+            final MongoBulkLoader loader = new MongoBulkLoader(smallWriter, MongoBulkLoader.Format.NDJSON);
+            Assert.assertEquals(file.length(), loader.load(file));
+            Assert.assertEquals(2L, loader.getDocuments());
+            Assert.assertEquals(1L, loader.getDroppedDocuments());
+            Assert.assertEquals(1L, smallWriter.getOpsLost());
+
+            waitForInserts(2);
+            Assert.assertFalse(inserted.contains(1));
+        }
+        finally {
+            smallWriter.stop();
+        }
+    }
+
+    @Test
+    public void testLoadBson() throws Exception
+    {
+        final File file = temporaryFolder.newFile("dump.bson");
+        final BasicBSONEncoder encoder = new BasicBSONEncoder();
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            for (int i = 0; i < DOCUMENTS; i++) {
+                out.write(encoder.encode(new BasicDBObject("seq", i).append("name", "document " + i)));
+            }
+        }
+        finally {
+            out.close();
+        }
+
+        // Chunks smaller than a document must grow.
+        final MongoBulkLoader loader = new MongoBulkLoader(writer, MongoBulkLoader.Format.BSON).withParallelism(3).withChunkSize(16);
+        Assert.assertEquals(file.length(), loader.load(file));
+        Assert.assertEquals(DOCUMENTS, loader.getDocuments());
+
+        waitForInserts(DOCUMENTS);
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedBson() throws Exception
+    {
+        final File file = temporaryFolder.newFile("truncated.bson");
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            final byte [] document = new BasicBSONEncoder().encode(new BasicDBObject("seq", 1));
+            out.write(document);
+            out.write(document, 0, document.length - 2);
+        }
+        finally {
+            out.close();
+        }
+
+        new MongoBulkLoader(writer, MongoBulkLoader.Format.BSON).load(file);
+    }
+}
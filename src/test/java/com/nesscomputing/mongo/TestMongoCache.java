@@ -0,0 +1,195 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.bson.BSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.skife.config.TimeSpan;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.MongoURI;
+
+public class TestMongoCache
+{
+    private FakeMongoServer server = null;
+    private MongoCache cache = null;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        server = new FakeMongoServer();
+        server.start();
+
+        final List<BSONObject> documents = Lists.newArrayList();
+        for (int i = 0; i < 100; i++) {
+            documents.add(new BasicDBObject("_id", "doc-" + i).append("value", i));
+        }
+        server.addDocuments("cache", "documents", documents);
+
+        cache = createCache(1000L);
+    }
+
+    private MongoCache createCache(final long maximumSize)
+    {
+        final MongoURI mongoUri = server.getMongoUri("cache");
+        final MongoCache mongoCache = new MongoCache(new MongoCacheConfig() {
+            @Override
+            public long getMaximumSize() {
+                return maximumSize;
+            }
+
+            @Override
+            public int getMaxBatchSize() {
+                return 20;
+            }
+
+            @Override
+            public MongoURI getMongoUri() {
+                return mongoUri;
+            }
+
+            @Override
+            public String getCollectionName() {
+                return "documents";
+            }
+        });
+        mongoCache.start();
+        return mongoCache;
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        cache.stop();
+        server.stop();
+    }
+
+    @Test
+    public void testGet()
+    {
+        Assert.assertEquals(3, cache.get("doc-3").get("value"));
+        Assert.assertEquals(3, cache.get("doc-3").get("value"));
+        Assert.assertNull(cache.get("missing"));
+        Assert.assertNull(cache.get("missing"));
+
+        Assert.assertEquals(2L, server.getQueries());
+        Assert.assertEquals(2L, cache.getHitCount());
+        Assert.assertEquals(2L, cache.getMissCount());
+    }
+
+    @Test
+    public void testGetAll()
+    {
+        cache.get("doc-0");
+
+        final List<Object> ids = Lists.newArrayList();
+        for (int i = 0; i < 45; i++) {
+            ids.add("doc-" + i);
+        }
+        ids.add("missing");
+
+        final Map<Object, DBObject> documents = cache.getAll(ids);
+        Assert.assertEquals(45, documents.size());
+        Assert.assertEquals(ImmutableList.copyOf(ids.subList(0, 45)), ImmutableList.copyOf(documents.keySet()));
+
+        // One lookup, then 45 misses in three $in queries.
+        Assert.assertEquals(4L, server.getQueries());
+        Assert.assertEquals(3L, cache.getBatchLoads());
+        Assert.assertEquals(45L, cache.getBatchLoadedIds());
+
+        Assert.assertEquals(45, cache.getAll(ids).size());
+        Assert.assertEquals(4L, server.getQueries());
+    }
+
+    @Test
+    public void testGetAllNumericIds()
+    {
+        server.addDocuments("cache", "documents", ImmutableList.<BSONObject>of(
+            new BasicDBObject("_id", 5L).append("value", "long"),
+            new BasicDBObject("_id", 7).append("value", "int")));
+
+        // The server matches numbers across types, the documents must be cached under the requested ids.
+        final Map<Object, DBObject> documents = cache.getAll(ImmutableList.<Object>of(5, 7L, 8));
+        Assert.assertEquals(2, documents.size());
+        Assert.assertEquals("long", documents.get(5).get("value"));
+        Assert.assertEquals("int", documents.get(7L).get("value"));
+
+        Assert.assertEquals("long", cache.get(5).get("value"));
+        Assert.assertEquals(1L, server.getQueries());
+    }
+
+    @Test
+    public void testEviction()
+    {
+        cache.stop();
+        cache = createCache(50L);
+
+        for (int i = 0; i < 100; i++) {
+            cache.get("doc-" + i);
+        }
+        Assert.assertTrue(cache.getSize() <= 50L);
+        Assert.assertTrue(cache.getEvictionCount() >= 50L);
+    }
+
+    @Test
+    public void testInvalidate()
+    {
+        cache.get("doc-1");
+        cache.invalidate("doc-1");
+        cache.get("doc-1");
+        Assert.assertEquals(2L, server.getQueries());
+    }
+
+    @Test
+    public void testCoalesceMisses() throws Exception
+    {
+        server.setQueryLatency(new TimeSpan("100ms"));
+
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<DBObject>> futures = Lists.newArrayList();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(new Callable<DBObject>() {
+                    @Override
+                    public DBObject call() {
+                        return cache.get("doc-7");
+                    }
+                }));
+            }
+            for (Future<DBObject> future : futures) {
+                Assert.assertEquals(7, future.get().get("value"));
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(1L, server.getQueries());
+        Assert.assertEquals(1L, cache.getLoadCount());
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import java.util.List;
+
+import org.bson.BSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.MongoURI;
+
+public class TestMongoReader
+{
+    private static final int DOCUMENTS = 2500;
+
+    private FakeMongoServer server = null;
+    private MongoReader reader = null;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        server = new FakeMongoServer();
+        server.start();
+
+        final List<BSONObject> documents = Lists.newArrayList();
+        for (int i = 0; i < DOCUMENTS; i++) {
+            documents.add(new BasicDBObject("_id", i).append("odd", i % 2 == 1));
+        }
+        server.addDocuments("reader", "documents", documents);
+
+        final MongoURI mongoUri = server.getMongoUri("reader");
+        reader = new MongoReader(new MongoReaderConfig() {
+            @Override
+            public int getBatchSize() {
+                return 100;
+            }
+
+            @Override
+            public int getPrefetchSize() {
+                return 50;
+            }
+
+            @Override
+            public MongoURI getMongoUri() {
+                return mongoUri;
+            }
+
+            @Override
+            public String getCollectionName() {
+                return "documents";
+            }
+        });
+        reader.start();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        reader.stop();
+        server.stop();
+    }
+
+    @Test
+    public void testStreamAll()
+    {
+        final MongoReaderStream stream = reader.find(new BasicDBObject());
+        int count = 0;
+        while (stream.hasNext()) {
+            final DBObject dbObject = stream.next();
+            Assert.assertEquals(count, ((Number) dbObject.get("_id")).intValue());
+            count++;
+        }
+
+        Assert.assertEquals(DOCUMENTS, count);
+        Assert.assertFalse(stream.hasNext());
+        Assert.assertTrue(server.getGetMores() >= DOCUMENTS / 100 - 1);
+        Assert.assertEquals(1L, reader.getQueries());
+        Assert.assertEquals(DOCUMENTS, reader.getDocsFetched());
+        Assert.assertEquals(DOCUMENTS, reader.getDocsRead());
+        Assert.assertEquals(0, reader.getOpenStreams());
+    }
+
+    @Test
+    public void testQuery()
+    {
+        final MongoReaderStream stream = reader.find(new BasicDBObject("odd", true));
+        int count = 0;
+        while (stream.hasNext()) {
+            Assert.assertEquals(Boolean.TRUE, stream.next().get("odd"));
+            count++;
+        }
+        Assert.assertEquals(DOCUMENTS / 2, count);
+    }
+
+    @Test
+    public void testCloseEarly() throws Exception
+    {
+        final MongoReaderStream stream = reader.find(new BasicDBObject());
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(i, ((Number) stream.next().get("_id")).intValue());
+        }
+        stream.close();
+
+        Assert.assertFalse(stream.hasNext());
+        Assert.assertEquals(0, reader.getOpenStreams());
+
+        final long deadline = System.currentTimeMillis() + 5000L;
+        while (server.getOpenCursors() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        Assert.assertEquals(0, server.getOpenCursors());
+        Assert.assertTrue(reader.getDocsFetched() < DOCUMENTS);
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void testNotStarted()
+    {
+        reader.stop();
+        reader.find(new BasicDBObject());
+    }
+}
@@ -0,0 +1,280 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.skife.config.TimeSpan;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.MongoURI;
+
+public class TestMongoTailer
+{
+    private final BlockingQueue<DBObject> handled = new LinkedBlockingQueue<DBObject>();
+
+    private FakeMongoServer server = null;
+    private MongoTailer tailer = null;
+    private int port = 0;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        server = new FakeMongoServer();
+        server.start();
+        port = server.getPort();
+
+        final MongoURI mongoUri = server.getMongoUri("tailer");
+        tailer = new MongoTailer(new MongoTailerConfig() {
+            @Override
+            public boolean isEnabled() {
+                return true;
+            }
+
+            @Override
+            public TimeSpan getRestartDelay() {
+                return new TimeSpan("20ms");
+            }
+
+            @Override
+            public TimeSpan getConnectBackoffMin() {
+                return new TimeSpan("10ms");
+            }
+
+            @Override
+            public TimeSpan getConnectBackoffMax() {
+                return new TimeSpan("50ms");
+            }
+
+            @Override
+            public MongoURI getMongoUri() {
+                return mongoUri;
+            }
+
+            @Override
+            public String getCollectionName() {
+                return "events";
+            }
+        }, new MongoTailerHandler() {
+            @Override
+            public void handle(final DBObject document) {
+                handled.add(document);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        tailer.stop();
+        server.stop();
+    }
+
+    private void addEvents(final int from, final int to)
+    {
+        final List<BSONObject> documents = Lists.newArrayList();
+        for (int i = from; i < to; i++) {
+            documents.add(new BasicDBObject("_id", i));
+        }
+        server.addDocuments("tailer", "events", documents);
+    }
+
+    private void addStampedEvents(final int from, final int to)
+    {
+        final List<BSONObject> documents = Lists.newArrayList();
+        for (int i = from; i < to; i++) {
+            documents.add(new BasicDBObject("_id", i).append("ts", i));
+        }
+        server.addDocuments("tailer", "events", documents);
+    }
+
+    private void expectEvents(final int from, final int to) throws InterruptedException
+    {
+        for (int i = from; i < to; i++) {
+            final DBObject document = handled.poll(5, TimeUnit.SECONDS);
+            Assert.assertNotNull("missing event " + i, document);
+            Assert.assertEquals(i, ((Number) document.get("_id")).intValue());
+        }
+    }
+
+    @Test
+    public void testFollow() throws Exception
+    {
+        addEvents(0, 5);
+        tailer.start();
+        expectEvents(0, 5);
+
+        addEvents(5, 10);
+        expectEvents(5, 10);
+
+        Assert.assertEquals(1L, tailer.getCursorsOpened());
+        Assert.assertEquals(10L, tailer.getDocsReceived());
+        Assert.assertEquals("9", tailer.getLastPosition());
+    }
+
+    @Test
+    public void testEmptyCollection() throws Exception
+    {
+        tailer.start();
+        Thread.sleep(100L);
+        Assert.assertTrue(handled.isEmpty());
+
+        addEvents(0, 5);
+        expectEvents(0, 5);
+    }
+
+    @Test
+    public void testResumeAfterReconnect() throws Exception
+    {
+        addEvents(0, 5);
+        tailer.start();
+        expectEvents(0, 5);
+
+        server.stop();
+        addEvents(5, 10);
+        server.start(port);
+        expectEvents(5, 10);
+
+        // Nothing is handled twice.
+        Thread.sleep(100L);
+        Assert.assertTrue(handled.isEmpty());
+        Assert.assertTrue(tailer.getCursorsLost() > 0L);
+        Assert.assertEquals(10L, tailer.getDocsReceived());
+    }
+
+    @Test
+    public void testResumeOnAliasedField() throws Exception
+    {
+        final MongoURI mongoUri = server.getMongoUri("tailer");
+        final MongoTailer aliasedTailer = new MongoTailer(new MongoTailerConfig() {
+            @Override
+            public boolean isEnabled() {
+                return true;
+            }
+
+            @Override
+            public String getResumeField() {
+                return "timestamp";
+            }
+
+            @Override
+            public TimeSpan getRestartDelay() {
+                return new TimeSpan("20ms");
+            }
+
+            @Override
+            public TimeSpan getConnectBackoffMin() {
+                return new TimeSpan("10ms");
+            }
+
+            @Override
+            public MongoURI getMongoUri() {
+                return mongoUri;
+            }
+
+            @Override
+            public String getCollectionName() {
+                return "events";
+            }
+        }, new MongoTailerHandler() {
+            @Override
+            public void handle(final DBObject document) {
+                handled.add(document);
+            }
+        }, FieldAliases.of(ImmutableMap.of("timestamp", "ts")));
+
+        addStampedEvents(0, 5);
+        aliasedTailer.start();
+        try {
+            expectEvents(0, 5);
+
+            server.stop();
+            addStampedEvents(5, 10);
+            server.start(port);
+            expectEvents(5, 10);
+            Assert.assertEquals("9", aliasedTailer.getLastPosition());
+        }
+        finally {
+            aliasedTailer.stop();
+        }
+    }
+
+    @Test
+    public void testHandlerErrors() throws Exception
+    {
+        final Set<Object> seen = Sets.newConcurrentHashSet();
+        final MongoTailer failingTailer = new MongoTailer(new MongoTailerConfig() {
+            @Override
+            public boolean isEnabled() {
+                return true;
+            }
+
+            @Override
+            public int getHandlerThreads() {
+                return 4;
+            }
+
+            @Override
+            public int getHandlerQueueLength() {
+                return 2;
+            }
+
+            @Override
+            public MongoURI getMongoUri() {
+                return server.getMongoUri("tailer");
+            }
+
+            @Override
+            public String getCollectionName() {
+                return "events";
+            }
+        }, new MongoTailerHandler() {
+            @Override
+            public void handle(final DBObject document) {
+                seen.add(document.get("_id"));
+                throw new IllegalStateException("fail");
+            }
+        });
+
+        addEvents(0, 100);
+        failingTailer.start();
+        try {
+            final long deadline = System.currentTimeMillis() + 5000L;
+            while (failingTailer.getHandlerErrors() < 100L && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10L);
+            }
+            Assert.assertEquals(100L, failingTailer.getHandlerErrors());
+            Assert.assertEquals(100, seen.size());
+            Assert.assertEquals(0L, failingTailer.getDocsHandled());
+        }
+        finally {
+            failingTailer.stop();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestMongoThreads
+{
+    @Test
+    public void testPlatformThread() throws Exception
+    {
+        final ThreadFactory threadFactory = MongoThreads.platformThreadFactory("test-writer");
+        Assert.assertEquals("test-writer", runAndGetThreadName(threadFactory));
+    }
+
+    @Test
+    public void testVirtualThreadIfSupported() throws Exception
+    {
+        final ThreadFactory threadFactory = MongoThreads.virtualThreadFactory("test-writer");
+        if (threadFactory != null) {
+            Assert.assertEquals("test-writer", runAndGetThreadName(threadFactory));
+        }
+    }
+
+    private static String runAndGetThreadName(final ThreadFactory threadFactory) throws InterruptedException
+    {
+        final AtomicReference<String> threadName = new AtomicReference<String>();
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        MongoThreads.threadPerTask(threadFactory).execute(new Runnable() {
+            @Override
+            public void run() {
+                threadName.set(Thread.currentThread().getName());
+                latch.countDown();
+            }
+        });
+
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        return threadName.get();
+    }
+}
@@ -17,6 +17,10 @@ package com.nesscomputing.mongo;
 
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -62,11 +66,11 @@ public class TestMongoWriter
     @Test
     public void testCoolOffWithQueueFlush() throws Exception
     {
-        final List<Callable<DBObject>> flushList = Lists.newArrayList();
+        final List<DBObject> flushList = Lists.newArrayList();
 
         final MongoWriter dummyWriter = new MongoWriter(MONGO_WRITER_CONFIG) {
             @Override
-            protected void flushToMongo(final List<Callable<DBObject>> dbObjects)
+            protected void flushToMongo(final List<DBObject> dbObjects)
             {
                 flushList.addAll(dbObjects);
             }
@@ -104,11 +108,11 @@ public class TestMongoWriter
     @Test
     public void testCoolOffWithoutQueueFlush() throws Exception
     {
-        final List<Callable<DBObject>> flushList = Lists.newArrayList();
+        final List<DBObject> flushList = Lists.newArrayList();
 
         final MongoWriter dummyWriter = new MongoWriter(MONGO_WRITER_CONFIG) {
             @Override
-            protected void flushToMongo(final List<Callable<DBObject>> dbObjects)
+            protected void flushToMongo(final List<DBObject> dbObjects)
             {
                 flushList.addAll(dbObjects);
             }
@@ -133,4 +137,403 @@ public class TestMongoWriter
         }
     }
 
+    @Test
+    public void testMetricsSink() throws Exception
+    {
+        final AtomicInteger enqueued = new AtomicInteger();
+        final AtomicInteger timeouts = new AtomicInteger();
+        final AtomicInteger dequeued = new AtomicInteger();
+
+        final MongoWriterMetricsSink metricsSink = new MongoWriterMetricsSink() {
+            @Override
+            public void enqueued() {
+                enqueued.incrementAndGet();
+            }
+
+            @Override
+            public void enqueueTimeout() {
+                timeouts.incrementAndGet();
+            }
+
+            @Override
+            public void enqueueCooloff() {
+            }
+
+            @Override
+            public void dequeued(final int count) {
+                dequeued.addAndGet(count);
+            }
+
+            @Override
+            public void sent(final int count) {
+            }
+
+            @Override
+            public void lost(final int count) {
+            }
+        };
+
+        final MongoWriter dummyWriter = new MongoWriter(MONGO_WRITER_CONFIG, null, metricsSink, FieldAliases.NONE) {
+            @Override
+            protected void flushToMongo(final List<DBObject> dbObjects)
+            {
+            }
+        };
+
+        while (dummyWriter.write(CALLABLE)) {
+            // fill the queue.
+        }
+
+        dummyWriter.runLoop();
+
+        Assert.assertEquals(MONGO_WRITER_CONFIG.getQueueLength(), enqueued.get());
+        Assert.assertEquals(1, timeouts.get());
+        Assert.assertEquals(MONGO_WRITER_CONFIG.getQueueLength(), dequeued.get());
+        Assert.assertEquals(dummyWriter.getOpsEnqueued(), enqueued.get());
+        Assert.assertEquals(dummyWriter.getLongestBurst(), dequeued.get());
+    }
+
+    @Test
+    public void testRuntimeTuning() throws Exception
+    {
+        final MongoWriter dummyWriter = new MongoWriter(MONGO_WRITER_CONFIG) {
+            @Override
+            protected void flushToMongo(final List<DBObject> dbObjects)
+            {
+            }
+        };
+
+        Assert.assertEquals(MONGO_WRITER_CONFIG.getQueueLength(), dummyWriter.getQueueCapacity());
+        dummyWriter.setQueueCapacity(10);
+        Assert.assertEquals(10, dummyWriter.getQueueCapacity());
+
+        int count = 0;
+        while (dummyWriter.write(CALLABLE)) {
+            count++;
+        }
+        Assert.assertEquals(10, count);
+
+        dummyWriter.setTickerTime("250ms");
+        Assert.assertEquals("250ms", dummyWriter.getTickerTime());
+
+        dummyWriter.setEnqueueTimeout("");
+        Assert.assertNull(dummyWriter.getEnqueueTimeout());
+        dummyWriter.setEnqueueTimeout("5ms");
+        Assert.assertEquals("5ms", dummyWriter.getEnqueueTimeout());
+
+        dummyWriter.setFailureCooloffTime("2s");
+        Assert.assertEquals("2s", dummyWriter.getFailureCooloffTime());
+
+        final List<String> changes = dummyWriter.getConfigurationChanges();
+        Assert.assertEquals(5, changes.size());
+        Assert.assertTrue(changes.get(0).contains("queue capacity changed from 1000 to 10"));
+        Assert.assertTrue(changes.get(4).contains("failure cooloff time changed from 1s to 2s"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadTickerTime()
+    {
+        new MongoWriter(MONGO_WRITER_CONFIG).setTickerTime("never");
+    }
+
+    @Test
+    public void testAssignIdsAndDropDuplicates() throws Exception
+    {
+        final List<DBObject> flushList = Lists.newArrayList();
+
+        final MongoWriter dummyWriter = new MongoWriter(new MongoWriterConfig() {
+            @Override
+            public boolean isEnabled() {
+                return true;
+            }
+
+            @Override
+            public boolean isAssignIds() {
+                return true;
+            }
+
+            @Override
+            public int getDuplicateFilterSize() {
+                return 1000;
+            }
+
+            @Override
+            public MongoURI getMongoUri() {
+                return null;
+            }
+
+            @Override
+            public String getCollectionName() {
+                return null;
+            }
+        }) {
+            @Override
+            protected void flushToMongo(final List<DBObject> dbObjects)
+            {
+                flushList.addAll(dbObjects);
+            }
+        };
+
+        final DBObject dbObject = new BasicDBObject("hello", "world");
+        Assert.assertTrue(dummyWriter.write(dbObject));
+        Assert.assertNotNull(dbObject.get("_id"));
+
+        // Same object twice, and a callable.
+        Assert.assertTrue(dummyWriter.write(dbObject));
+        Assert.assertTrue(dummyWriter.write(CALLABLE));
+
+        dummyWriter.runLoop();
+
+        Assert.assertEquals(2, flushList.size());
+        Assert.assertSame(dbObject, flushList.get(0));
+        Assert.assertNotNull(flushList.get(1).get("_id"));
+        Assert.assertEquals(1L, dummyWriter.getOpsDuplicates());
+
+        // Resending the same object later is dropped as well.
+        Assert.assertTrue(dummyWriter.write(dbObject));
+        dummyWriter.runLoop();
+        Assert.assertEquals(2, flushList.size());
+        Assert.assertEquals(2L, dummyWriter.getOpsDuplicates());
+
+        // Numeric ids are the same document if their values are equal.
+        Assert.assertTrue(dummyWriter.write(new BasicDBObject("_id", 1)));
+        Assert.assertTrue(dummyWriter.write(new BasicDBObject("_id", 1L)));
+        dummyWriter.runLoop();
+        Assert.assertTrue(dummyWriter.write(new BasicDBObject("_id", 1.0d)));
+        dummyWriter.runLoop();
+        Assert.assertEquals(3, flushList.size());
+        Assert.assertEquals(4L, dummyWriter.getOpsDuplicates());
+    }
+
+    @Test
+    public void testDroppedBatchIsNotRemembered() throws Exception
+    {
+        final List<DBObject> flushList = Lists.newArrayList();
+        final AtomicInteger failures = new AtomicInteger(1);
+
+        final MongoWriter dummyWriter = new MongoWriter(new MongoWriterConfig() {
+            @Override
+            public boolean isEnabled() {
+                return true;
+            }
+
+            @Override
+            public boolean isAssignIds() {
+                return true;
+            }
+
+            @Override
+            public int getDuplicateFilterSize() {
+                return 1000;
+            }
+
+            @Override
+            public MongoURI getMongoUri() {
+                return null;
+            }
+
+            @Override
+            public String getCollectionName() {
+                return null;
+            }
+        }) {
+            @Override
+            protected void flushToMongo(final List<DBObject> dbObjects)
+            {
+                if (failures.getAndDecrement() > 0) {
+                    throw new IllegalStateException("write failed");
+                }
+                flushList.addAll(dbObjects);
+            }
+        };
+
+        final DBObject dbObject = new BasicDBObject("hello", "world");
+        Assert.assertTrue(dummyWriter.write(dbObject));
+        dummyWriter.runLoop();
+        Assert.assertEquals(1L, dummyWriter.getOpsLost());
+        Assert.assertTrue(flushList.isEmpty());
+
+        // The producer writes the dropped object again, it must not be taken for a duplicate.
+        Assert.assertTrue(dummyWriter.write(dbObject));
+        dummyWriter.runLoop();
+        Assert.assertEquals(1, flushList.size());
+        Assert.assertEquals(0L, dummyWriter.getOpsDuplicates());
+
+        // Once written, it is.
+        Assert.assertTrue(dummyWriter.write(dbObject));
+        dummyWriter.runLoop();
+        Assert.assertEquals(1, flushList.size());
+        Assert.assertEquals(1L, dummyWriter.getOpsDuplicates());
+    }
+
+    @Test
+    public void testOffHeapConversionErrors() throws Exception
+    {
+        final List<DBObject> flushList = Lists.newArrayList();
+
+        final MongoWriter dummyWriter = new MongoWriter(new MongoWriterConfig() {
+            @Override
+            public boolean isEnabled() {
+                return true;
+            }
+
+            @Override
+            public int getQueueBytes() {
+                return 1024;
+            }
+
+            @Override
+            public MongoURI getMongoUri() {
+                return null;
+            }
+
+            @Override
+            public String getCollectionName() {
+                return null;
+            }
+        }) {
+            @Override
+            protected void flushToMongo(final List<DBObject> dbObjects)
+            {
+                flushList.addAll(dbObjects);
+            }
+        };
+
+        // A callable that fails and a document that is larger than the queue are dropped, like the heap queue does.
+        Assert.assertFalse(dummyWriter.write(new Callable<DBObject>() {
+            @Override
+            public DBObject call() {
+                throw new IllegalStateException("broken");
+            }
+        }));
+        Assert.assertFalse(dummyWriter.write(new BasicDBObject("data", new byte[2048])));
+        Assert.assertEquals(2L, dummyWriter.getOpsLost());
+
+        // Neither counts as a full queue.
+        Assert.assertTrue(dummyWriter.write(new BasicDBObject("hello", "world")));
+        dummyWriter.runLoop();
+        Assert.assertEquals(1, flushList.size());
+        Assert.assertEquals("world", flushList.get(0).get("hello"));
+    }
+
+    public static class Event
+    {
+        public String getName()
+        {
+            return "event";
+        }
+    }
+
+    @Test
+    public void testWritePojo() throws Exception
+    {
+        final List<DBObject> flushList = Lists.newArrayList();
+
+        final MongoWriter dummyWriter = new MongoWriter(MONGO_WRITER_CONFIG) {
+            @Override
+            protected void flushToMongo(final List<DBObject> dbObjects)
+            {
+                flushList.addAll(dbObjects);
+            }
+        };
+
+        final DBObject dbObject = new BasicDBObject("hello", "world");
+        Assert.assertTrue(dummyWriter.write(new Event(), PojoCodec.forClass(Event.class)));
+        Assert.assertTrue(dummyWriter.write(dbObject));
+        dummyWriter.runLoop();
+
+        Assert.assertEquals(2, flushList.size());
+        Assert.assertEquals("event", flushList.get(0).get("name"));
+        Assert.assertSame(dbObject, flushList.get(1));
+    }
+
+    @Test
+    public void testConversionProfile() throws Exception
+    {
+        final MongoWriter dummyWriter = new MongoWriter(MONGO_WRITER_CONFIG) {
+            @Override
+            protected void flushToMongo(final List<DBObject> dbObjects)
+            {
+            }
+        };
+
+        Assert.assertEquals(0, dummyWriter.getProfileSampleRate());
+        Assert.assertTrue(dummyWriter.write(new BasicDBObject("hello", "world")));
+        dummyWriter.runLoop();
+        Assert.assertTrue(dummyWriter.getConversionProfile().isEmpty());
+
+        dummyWriter.setProfileSampleRate(1);
+        Assert.assertTrue(dummyWriter.write(new BasicDBObject("hello", "world")));
+        Assert.assertTrue(dummyWriter.write(new BasicDBObject("hello", "again")));
+        dummyWriter.runLoop();
+
+        final TabularData profile = dummyWriter.getConversionProfile();
+        Assert.assertEquals(1, profile.size());
+        final CompositeData row = profile.get(new Object [] {BasicDBObject.class.getName()});
+        Assert.assertEquals(2L, row.get("samples"));
+        Assert.assertTrue((Long) row.get("maxBytes") > 0L);
+
+        dummyWriter.resetConversionProfile();
+        Assert.assertTrue(dummyWriter.getConversionProfile().isEmpty());
+    }
+
+    @Test
+    public void testConversionProfileKeepsTags() throws Exception
+    {
+        final MongoWriter dummyWriter = new MongoWriter(new MongoWriterConfig() {
+            @Override
+            public boolean isEnabled() {
+                return true;
+            }
+
+            @Override
+            public boolean isAssignIds() {
+                return true;
+            }
+
+            @Override
+            public int getProfileSampleRate() {
+                return 1;
+            }
+
+            @Override
+            public MongoURI getMongoUri() {
+                return null;
+            }
+
+            @Override
+            public String getCollectionName() {
+                return null;
+            }
+        }) {
+            @Override
+            protected void flushToMongo(final List<DBObject> dbObjects)
+            {
+            }
+        };
+
+        Assert.assertTrue(dummyWriter.write(new TaggedCallable()));
+        Assert.assertTrue(dummyWriter.write(new Event(), PojoCodec.forClass(Event.class)));
+        dummyWriter.runLoop();
+
+        final TabularData profile = dummyWriter.getConversionProfile();
+        Assert.assertEquals(2, profile.size());
+        Assert.assertEquals(1L, profile.get(new Object [] {"tagged"}).get("samples"));
+        Assert.assertEquals(1L, profile.get(new Object [] {Event.class.getName()}).get("samples"));
+    }
+
+    private static final class TaggedCallable implements Callable<DBObject>, MongoWriterProfileTag
+    {
+        @Override
+        public DBObject call()
+        {
+            return new BasicDBObject("hello", "world");
+        }
+
+        @Override
+        public String getProfileTag()
+        {
+            return "tagged";
+        }
+    }
 }
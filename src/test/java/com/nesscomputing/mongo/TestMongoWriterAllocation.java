@@ -0,0 +1,220 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.skife.config.TimeSpan;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBEncoder;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBEncoder;
+import com.mongodb.Mongo;
+import com.mongodb.MongoURI;
+import com.mongodb.WriteConcern;
+
+/**
+ * Makes sure that the steady state of enqueueing, draining and sending does not produce garbage beyond what the
+ * driver allocates itself.
+ */
+public class TestMongoWriterAllocation
+{
+    private static final int BATCH_SIZE = 100;
+    private static final int WARMUP_LOOPS = 20000;
+    private static final int MEASURED_LOOPS = 10000;
+
+    /** Leaves some room for the JIT and the measurement itself, but is far below one object per write. */
+    private static final long MAX_BYTES_PER_WRITE = 1L;
+
+    private static final int SEND_WARMUP_LOOPS = 2000;
+    private static final int SEND_MEASURED_LOOPS = 1000;
+
+    /**
+     * Sending allocates what the driver needs for every insert and getLastError, e.g. a new message buffer and the
+     * WriteResult. That is measured with the driver alone, on top of it the writer may only allocate some noise.
+     */
+    private static final long MAX_BYTES_PER_BATCH = 256L;
+
+    private static final MongoWriterConfig MONGO_WRITER_CONFIG = new MongoWriterConfig() {
+        @Override
+        public boolean isEnabled() {
+            return true;
+        }
+
+        @Override
+        public int getQueueLength() {
+            return BATCH_SIZE;
+        }
+
+        @Override
+        public TimeSpan getEnqueueTimeout() {
+            return new TimeSpan("10ms");
+        }
+
+        @Override
+        public MongoURI getMongoUri() {
+            return null;
+        }
+
+        @Override
+        public String getCollectionName() {
+            return null;
+        }
+    };
+
+    private static final DBObject DB_OBJECT = new BasicDBObject("hello", "world");
+
+    private com.sun.management.ThreadMXBean threadBean = null;
+
+    @Before
+    public void setUp()
+    {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @Test
+    public void testSteadyStateDoesNotAllocate()
+    {
+        final MongoWriter dummyWriter = new MongoWriter(MONGO_WRITER_CONFIG) {
+            @Override
+            protected void flushToMongo(final List<DBObject> dbObjects)
+            {
+                Assert.assertEquals(BATCH_SIZE, dbObjects.size());
+            }
+        };
+
+        runLoops(dummyWriter, WARMUP_LOOPS);
+
+        final long threadId = Thread.currentThread().getId();
+        final long before = threadBean.getThreadAllocatedBytes(threadId);
+        runLoops(dummyWriter, MEASURED_LOOPS);
+        final long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        final long writes = (long) MEASURED_LOOPS * BATCH_SIZE;
+        Assert.assertTrue(String.format("Allocated %d bytes for %d writes", allocated, writes), allocated <= writes * MAX_BYTES_PER_WRITE);
+        Assert.assertEquals((long) (WARMUP_LOOPS + MEASURED_LOOPS) * BATCH_SIZE, dummyWriter.getOpsDequeued());
+    }
+
+    @Test
+    public void testSendPathAllocation() throws Exception
+    {
+        final FakeMongoServer server = new FakeMongoServer();
+        server.start();
+        final MongoURI mongoUri = server.getMongoUri("allocation");
+        final MongoWriter writer = new MongoWriter(new MongoWriterConfig() {
+            @Override
+            public boolean isEnabled() {
+                return true;
+            }
+
+            @Override
+            public int getQueueLength() {
+                return BATCH_SIZE;
+            }
+
+            @Override
+            public MongoURI getMongoUri() {
+                return mongoUri;
+            }
+
+            @Override
+            public String getCollectionName() {
+                return "allocation";
+            }
+        });
+
+        final Mongo mongo = new Mongo(mongoUri);
+        try {
+            Assert.assertTrue(writer.connect());
+            final DBCollection collection = mongo.getDB("allocation").getCollection("driver");
+            final DBEncoder encoder = DefaultDBEncoder.FACTORY.create();
+
+            for (int i = 0; i < SEND_WARMUP_LOOPS; i++) {
+                final DBObject [] documents = newDocuments(i * BATCH_SIZE, BATCH_SIZE);
+                for (DBObject document : documents) {
+                    Assert.assertTrue(writer.write(document));
+                }
+                writer.runLoop();
+                Assert.assertNull(collection.insert(newDocuments(i * BATCH_SIZE, BATCH_SIZE), WriteConcern.NORMAL, encoder).getLastError().get("err"));
+            }
+
+            // The documents already carry their ids, otherwise the driver allocates one for each of them.
+            final int firstId = SEND_WARMUP_LOOPS * BATCH_SIZE;
+            final DBObject [] documents = newDocuments(firstId, SEND_MEASURED_LOOPS * BATCH_SIZE);
+            final DBObject [][] driverBatches = new DBObject[SEND_MEASURED_LOOPS][];
+            for (int i = 0; i < SEND_MEASURED_LOOPS; i++) {
+                driverBatches[i] = newDocuments(firstId + i * BATCH_SIZE, BATCH_SIZE);
+            }
+
+            final long threadId = Thread.currentThread().getId();
+
+            // What the driver allocates for an insert and its getLastError, e.g. the message buffers and the WriteResult.
+            long before = threadBean.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < SEND_MEASURED_LOOPS; i++) {
+                collection.insert(driverBatches[i], WriteConcern.NORMAL, encoder).getLastError();
+            }
+            final long driverAllocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+            before = threadBean.getThreadAllocatedBytes(threadId);
+            int document = 0;
+            for (int i = 0; i < SEND_MEASURED_LOOPS; i++) {
+                for (int j = 0; j < BATCH_SIZE; j++) {
+                    Assert.assertTrue(writer.write(documents[document++]));
+                }
+                writer.runLoop();
+            }
+            final long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+            final long allowed = driverAllocated + (long) SEND_MEASURED_LOOPS * (BATCH_SIZE * MAX_BYTES_PER_WRITE + MAX_BYTES_PER_BATCH);
+            Assert.assertTrue(String.format("Allocated %d bytes for %d batches, the driver alone %d bytes", allocated, SEND_MEASURED_LOOPS, driverAllocated), allocated <= allowed);
+            Assert.assertEquals((long) (SEND_WARMUP_LOOPS + SEND_MEASURED_LOOPS) * BATCH_SIZE, writer.getOpsSent());
+        }
+        finally {
+            writer.stop();
+            mongo.close();
+            server.stop();
+        }
+    }
+
+    private static DBObject [] newDocuments(final int firstId, final int count)
+    {
+        final DBObject [] documents = new DBObject[count];
+        for (int i = 0; i < count; i++) {
+            documents[i] = new BasicDBObject("_id", firstId + i);
+        }
+        return documents;
+    }
+
+    private static void runLoops(final MongoWriter writer, final int loops)
+    {
+        for (int i = 0; i < loops; i++) {
+            for (int j = 0; j < BATCH_SIZE; j++) {
+                Assert.assertTrue(writer.write(DB_OBJECT));
+            }
+            writer.runLoop();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import java.util.List;
+
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.skife.config.TimeSpan;
+
+import com.google.common.collect.Iterables;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.MongoURI;
+
+public class TestMongoWriterBudget
+{
+    /** Encoded size of a document with a 1000 byte binary field. */
+    private static final long DOCUMENT_BYTES = 1016L;
+
+    @Test
+    public void testUnlimitedTracksUsage()
+    {
+        final MongoWriterBudget budget = new MongoWriterBudget(0L, 100);
+        final MongoWriterBudget.Account account = budget.register("a");
+
+        for (int i = 0; i < 50; i++) {
+            Assert.assertTrue(account.admit());
+            account.queued();
+        }
+        Assert.assertEquals(5000L, budget.getBytesUsed());
+
+        account.released(20);
+        Assert.assertEquals(3000L, budget.getBytesUsed());
+        Assert.assertEquals(5000L, budget.getBytesHighWater());
+        Assert.assertEquals(1, budget.getWriters().size());
+
+        account.close();
+        Assert.assertEquals(0L, budget.getBytesUsed());
+        Assert.assertEquals(0, budget.getWriterCount());
+    }
+
+    @Test
+    public void testFairShare()
+    {
+        final MongoWriterBudget budget = new MongoWriterBudget(1000L, 100);
+        final MongoWriterBudget.Account slow = budget.register("slow");
+        final MongoWriterBudget.Account fast = budget.register("fast");
+
+        // The slow writer can take the whole budget while nobody else needs it.
+        int queued = 0;
+        while (slow.admit()) {
+            slow.queued();
+            queued++;
+        }
+        Assert.assertEquals(10, queued);
+        Assert.assertEquals(1L, slow.getRejected());
+
+        // Over budget, the other writer still gets its fair share.
+        queued = 0;
+        while (fast.admit()) {
+            fast.queued();
+            queued++;
+        }
+        Assert.assertEquals(5, queued);
+        Assert.assertEquals(1500L, budget.getBytesUsed());
+
+        // The slow writer must drain below its share before it is admitted again.
+        Assert.assertFalse(slow.admit());
+        slow.released(6);
+        Assert.assertTrue(slow.admit());
+        Assert.assertEquals(3L, budget.getRejected());
+    }
+
+    @Test
+    public void testDocumentSizeEstimate()
+    {
+        final MongoWriterBudget budget = new MongoWriterBudget(0L, 100);
+        final MongoWriterBudget.Account account = budget.register("a");
+
+        for (int i = 0; i < 200; i++) {
+            account.recordDocumentSize(1000);
+        }
+        account.queued();
+        Assert.assertTrue(budget.getBytesUsed() > 900L && budget.getBytesUsed() <= 1000L);
+    }
+
+    @Test
+    public void testSameWriterNameTwice()
+    {
+        final MongoWriterBudget budget = new MongoWriterBudget(0L, 100);
+        final MongoWriterBudget.Account first = budget.register("events");
+        final MongoWriterBudget.Account second = budget.register("events");
+        first.queued();
+        second.queued();
+
+        final TabularData writers = budget.getWriters();
+        Assert.assertEquals(2, writers.size());
+        for (Object row : writers.values()) {
+            Assert.assertEquals("events", ((CompositeData) row).get("writer"));
+        }
+        Assert.assertEquals(200L, budget.getBytesUsed());
+    }
+
+    @Test
+    public void testWriterRejectsOverBudget() throws Exception
+    {
+        // The configured size is replaced by the size of the first document.
+        final MongoWriterBudget budget = new MongoWriterBudget(10 * DOCUMENT_BYTES, 100);
+        final MongoWriter writer = new MongoWriter(new BudgetConfig(0), "budget-writer", null, MongoWriterMetricsSink.NOOP, FieldAliases.NONE, budget) {
+            @Override
+            protected void flushToMongo(final List<DBObject> dbObjects)
+            {
+            }
+        };
+
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(writer.write(new BasicDBObject("data", new byte[1000])));
+        }
+        Assert.assertFalse(writer.write(new BasicDBObject("data", new byte[1000])));
+        Assert.assertEquals(1L, writer.getOpsEnqOverBudget());
+        Assert.assertEquals(10 * DOCUMENT_BYTES, budget.getBytesUsed());
+        Assert.assertEquals("budget-writer", ((CompositeData) Iterables.getOnlyElement(budget.getWriters().values())).get("writer"));
+
+        writer.runLoop();
+        Assert.assertEquals(0L, budget.getBytesUsed());
+        Assert.assertTrue(writer.write(new BasicDBObject("data", new byte[1000])));
+    }
+
+    @Test
+    public void testOffHeapWriterReportsExactSize() throws Exception
+    {
+        // The off-heap queue adds an _id to every document.
+        final long documentBytes = DOCUMENT_BYTES + 17;
+        final MongoWriterBudget budget = new MongoWriterBudget(10 * documentBytes, 100);
+        final MongoWriter writer = new MongoWriter(new BudgetConfig(1024 * 1024), "budget-writer", null, MongoWriterMetricsSink.NOOP, FieldAliases.NONE, budget) {
+            @Override
+            protected void flushToMongo(final List<DBObject> dbObjects)
+            {
+            }
+        };
+
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(writer.write(new BasicDBObject("data", new byte[1000])));
+        }
+        Assert.assertFalse(writer.write(new BasicDBObject("data", new byte[1000])));
+        Assert.assertEquals(10 * documentBytes, budget.getBytesUsed());
+
+        writer.runLoop();
+        Assert.assertEquals(0L, budget.getBytesUsed());
+        Assert.assertEquals(10 * documentBytes, budget.getBytesHighWater());
+    }
+
+    private static class BudgetConfig extends MongoWriterConfig
+    {
+        private final int queueBytes;
+
+        BudgetConfig(final int queueBytes)
+        {
+            this.queueBytes = queueBytes;
+        }
+
+        @Override
+        public boolean isEnabled() {
+            return true;
+        }
+
+        @Override
+        public int getQueueBytes() {
+            return queueBytes;
+        }
+
+        @Override
+        public TimeSpan getEnqueueTimeout() {
+            return new TimeSpan("10ms");
+        }
+
+        @Override
+        public TimeSpan getFailureCooloffTime() {
+            return new TimeSpan("0ms");
+        }
+
+        @Override
+        public MongoURI getMongoUri() {
+            return null;
+        }
+
+        @Override
+        public String getCollectionName() {
+            return "budget";
+        }
+    }
+}
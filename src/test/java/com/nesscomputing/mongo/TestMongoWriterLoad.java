@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.skife.config.TimeSpan;
+
+public class TestMongoWriterLoad
+{
+    @Test
+    public void testAllDocumentsArrive() throws Exception
+    {
+        final MongoWriterLoadHarness.Result result = new MongoWriterLoadHarness()
+            .withProducers(2)
+            .withDocumentsPerProducer(5000)
+            .withQueueLength(1000)
+            .withMaxWait(new TimeSpan("30s"))
+            .run();
+
+        Assert.assertEquals(10000, result.getDocuments());
+        Assert.assertEquals(10000L, result.getSent());
+        Assert.assertEquals(0L, result.getLost());
+        Assert.assertTrue(result.getDocumentsPerSecond() > 0.0d);
+    }
+
+    @Test
+    public void testOffHeapQueue() throws Exception
+    {
+        final MongoWriterLoadHarness.Result result = new MongoWriterLoadHarness()
+            .withProducers(2)
+            .withDocumentsPerProducer(5000)
+            .withQueueBytes(64 * 1024)
+            .withMaxWait(new TimeSpan("30s"))
+            .run();
+
+        Assert.assertEquals(10000L, result.getSent());
+        Assert.assertEquals(0L, result.getLost());
+    }
+
+    @Test
+    public void testInjectedErrors() throws Exception
+    {
+        final MongoWriterLoadHarness.Result result = new MongoWriterLoadHarness()
+            .withProducers(1)
+            .withDocumentsPerProducer(1000)
+            .withLatency(new TimeSpan("1ms"))
+            .withErrorRate(1.0d)
+            .withMaxWait(new TimeSpan("30s"))
+            .run();
+
+        Assert.assertEquals(0L, result.getSent());
+        Assert.assertEquals(1000L, result.getLost());
+    }
+
+    @Test
+    public void testSomeInjectedErrors() throws Exception
+    {
+        final MongoWriterLoadHarness.Result result = new MongoWriterLoadHarness()
+            .withProducers(1)
+            .withDocumentsPerProducer(1000)
+            .withQueueLength(10)
+            .withErrorRate(0.5d)
+            .withMaxWait(new TimeSpan("30s"))
+            .run();
+
+        // Errors come back as ok:1 with err set, the failed batches must still be counted as lost.
+        Assert.assertEquals(1000L, result.getSent() + result.getLost());
+        Assert.assertTrue(result.getSent() > 0L);
+        Assert.assertTrue(result.getLost() > 0L);
+    }
+}
@@ -0,0 +1,226 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.skife.config.TimeSpan;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.MongoURI;
+
+public class TestMongoWriterReconnect
+{
+    private FakeMongoServer server = null;
+    private MongoWriter writer = null;
+    private int port = 0;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        // Find a free port, then leave it unused for now.
+        server = new FakeMongoServer();
+        server.start();
+        port = server.getPort();
+        server.stop();
+
+        final MongoURI mongoUri = new MongoURI(String.format("mongodb://127.0.0.1:%d/reconnect", port));
+
+        writer = new MongoWriter(new MongoWriterConfig() {
+            @Override
+            public boolean isEnabled() {
+                return true;
+            }
+
+            @Override
+            public TimeSpan getTickerTime() {
+                return new TimeSpan("10ms");
+            }
+
+            @Override
+            public TimeSpan getConnectBackoffMin() {
+                return new TimeSpan("10ms");
+            }
+
+            @Override
+            public TimeSpan getConnectBackoffMax() {
+                return new TimeSpan("50ms");
+            }
+
+            @Override
+            public int getMaxBatchRetries() {
+                return 100;
+            }
+
+            @Override
+            public MongoURI getMongoUri() {
+                return mongoUri;
+            }
+
+            @Override
+            public String getCollectionName() {
+                return "reconnect";
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        writer.stop();
+        server.stop();
+    }
+
+    @Test
+    public void testStartWithoutServer() throws Exception
+    {
+        writer.start();
+
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(writer.write(new BasicDBObject("value", i)));
+        }
+
+        waitFor(new Condition() {
+            @Override
+            public boolean isMet() {
+                return writer.getConnectFailures() > 2;
+            }
+        });
+        Assert.assertEquals(10, writer.getQueueLength());
+        Assert.assertFalse(ConnectionState.CONNECTED.name().equals(writer.getConnectionState()));
+
+        server.start(port);
+
+        waitFor(new Condition() {
+            @Override
+            public boolean isMet() {
+                return writer.getOpsSent() == 10;
+            }
+        });
+        Assert.assertEquals(ConnectionState.CONNECTED.name(), writer.getConnectionState());
+        Assert.assertEquals(10L, server.getDocumentsInserted());
+    }
+
+    @Test
+    public void testServerRestart() throws Exception
+    {
+        server.start(port);
+        writer.start();
+
+        Assert.assertTrue(writer.write(new BasicDBObject("value", 0)));
+        waitFor(new Condition() {
+            @Override
+            public boolean isMet() {
+                return writer.getOpsSent() == 1;
+            }
+        });
+
+        server.stop();
+
+        for (int i = 1; i < 10; i++) {
+            Assert.assertTrue(writer.write(new BasicDBObject("value", i)));
+        }
+
+        waitFor(new Condition() {
+            @Override
+            public boolean isMet() {
+                return writer.getConnectFailures() > 0;
+            }
+        });
+
+        server.start(port);
+
+        waitFor(new Condition() {
+            @Override
+            public boolean isMet() {
+                return writer.getOpsSent() == 10;
+            }
+        });
+        Assert.assertEquals(0L, writer.getOpsLost());
+        Assert.assertEquals(ConnectionState.CONNECTED.name(), writer.getConnectionState());
+    }
+
+    @Test
+    public void testResendAfterLostReply() throws Exception
+    {
+        server.start(port);
+        server.dropConnectionDuringInsert(4);
+
+        // Queued before the writer starts, so they are sent as one batch.
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(writer.write(new BasicDBObject("value", i)));
+        }
+        writer.start();
+
+        // The server stored part of the batch and the writer did not hear back. The resend must get past the
+        // objects that fail as duplicates.
+        waitFor(new Condition() {
+            @Override
+            public boolean isMet() {
+                return writer.getOpsSent() == 10;
+            }
+        });
+        Assert.assertEquals(10L, writer.getOpsRetried());
+        Assert.assertEquals(0L, writer.getOpsLost());
+        Assert.assertEquals(10L, server.getDocumentsInserted());
+    }
+
+    @Test
+    public void testDuplicateOnFirstAttempt() throws Exception
+    {
+        server.start(port);
+        writer.start();
+        Assert.assertTrue(writer.write(new BasicDBObject("_id", "existing")));
+        waitFor(new Condition() {
+            @Override
+            public boolean isMet() {
+                return writer.getOpsSent() == 1;
+            }
+        });
+
+        // Only the object that is already in the collection fails, the server stores the others.
+        for (int i = 0; i < 9; i++) {
+            Assert.assertTrue(writer.write(new BasicDBObject("_id", "new-" + i)));
+        }
+        Assert.assertTrue(writer.write(new BasicDBObject("_id", "existing")));
+        waitFor(new Condition() {
+            @Override
+            public boolean isMet() {
+                return writer.getOpsSent() + writer.getOpsLost() == 11;
+            }
+        });
+        Assert.assertEquals(10L, writer.getOpsSent());
+        Assert.assertEquals(1L, writer.getOpsLost());
+        Assert.assertEquals(0L, writer.getOpsRetried());
+        Assert.assertEquals(10L, server.getDocumentsInserted());
+    }
+
+    private interface Condition
+    {
+        boolean isMet();
+    }
+
+    private static void waitFor(final Condition condition) throws InterruptedException
+    {
+        final long deadline = System.nanoTime() + 10000000000L;
+        while (!condition.isMet()) {
+            Assert.assertTrue("Timed out", System.nanoTime() < deadline);
+            Thread.sleep(10L);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import javax.management.openmbean.CompositeData;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.skife.config.TimeSpan;
+
+import com.google.common.collect.Lists;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBEncoder;
+
+public class TestOffHeapWriteQueue
+{
+    private static final TimeSpan TIMEOUT = new TimeSpan("10ms");
+
+    private static Callable<DBObject> callable(final int value)
+    {
+        return new Callable<DBObject>() {
+            @Override
+            public DBObject call() {
+                return new BasicDBObject("value", value);
+            }
+        };
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        final OffHeapWriteQueue queue = new OffHeapWriteQueue(4096);
+
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(queue.offer(callable(i), TIMEOUT));
+        }
+
+        Assert.assertEquals(10, queue.size());
+        Assert.assertTrue(queue.getBytesUsed() > 0);
+
+        final List<Object> batch = Lists.newArrayList();
+        Assert.assertEquals(10, queue.drainTo(batch));
+        Assert.assertEquals(10, batch.size());
+
+        for (int i = 0; i < 10; i++) {
+            final DBObject dbObject = (DBObject) batch.get(i);
+            Assert.assertEquals(i, dbObject.get("value"));
+            Assert.assertNotNull(dbObject.get("_id"));
+        }
+
+        Assert.assertEquals(0, queue.size());
+        Assert.assertEquals(0L, queue.getBytesUsed());
+        Assert.assertTrue(queue.getBytesHighWater() > 0);
+    }
+
+    @Test
+    public void testProfilesOnOffer() throws Exception
+    {
+        final ConversionProfiler profiler = new ConversionProfiler(1);
+        final OffHeapWriteQueue queue = new OffHeapWriteQueue(4096, DefaultDBEncoder.FACTORY, profiler);
+
+        final Callable<DBObject> callable = callable(1);
+        Assert.assertTrue(queue.offer(callable, TIMEOUT));
+
+        final CompositeData row = profiler.getTopTags(20).get(new Object [] {callable.getClass().getName()});
+        Assert.assertEquals(1L, row.get("samples"));
+        Assert.assertEquals(queue.getBytesUsed(), row.get("maxBytes"));
+    }
+
+    @Test
+    public void testBoundedByBytes() throws Exception
+    {
+        final OffHeapWriteQueue queue = new OffHeapWriteQueue(1024);
+
+        int count = 0;
+        while (queue.offer(callable(count), TIMEOUT)) {
+            count++;
+        }
+
+        Assert.assertTrue(count > 0);
+        Assert.assertEquals(count, queue.size());
+        Assert.assertTrue(queue.getBytesUsed() <= 1024L);
+        Assert.assertEquals(queue.getBytesUsed(), queue.getBytesHighWater());
+
+        final List<Object> batch = Lists.newArrayList();
+        Assert.assertEquals(count, queue.drainTo(batch));
+
+        // Space is available again.
+        Assert.assertTrue(queue.offer(callable(0), TIMEOUT));
+    }
+
+    @Test
+    public void testDrainsInChunks() throws Exception
+    {
+        final int documentBytes = 100 * 1024;
+        final OffHeapWriteQueue queue = new OffHeapWriteQueue(4 * 1024 * 1024);
+
+        for (int i = 0; i < 20; i++) {
+            Assert.assertTrue(queue.offer(new BasicDBObject("value", i).append("data", new byte[documentBytes]), TIMEOUT));
+        }
+        final long bytesUsed = queue.getBytesUsed();
+
+        final List<Object> batch = Lists.newArrayList();
+        final int first = queue.drainTo(batch);
+        Assert.assertTrue(first > 0 && first < 20);
+        Assert.assertTrue(queue.isDrainPending());
+        Assert.assertEquals(20 - first, queue.size());
+        Assert.assertTrue(queue.getBytesUsed() < bytesUsed);
+        Assert.assertEquals(0, ((DBObject) batch.get(0)).get("value"));
+
+        // Producers write into the other buffer while the writer drains.
+        Assert.assertTrue(queue.offer(callable(20), TIMEOUT));
+
+        int drained = first;
+        int value = 0;
+        while (drained < 21) {
+            for (Object element : batch) {
+                Assert.assertEquals(value++, ((DBObject) element).get("value"));
+            }
+            batch.clear();
+            final int count = queue.drainTo(batch);
+            Assert.assertTrue(count > 0);
+            drained += count;
+        }
+        Assert.assertEquals(20, ((DBObject) batch.get(batch.size() - 1)).get("value"));
+        Assert.assertFalse(queue.isDrainPending());
+        Assert.assertEquals(0, queue.drainTo(batch));
+        Assert.assertEquals(0L, queue.getBytesUsed());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDocumentTooLarge() throws Exception
+    {
+        final OffHeapWriteQueue queue = new OffHeapWriteQueue(16);
+        queue.offer(callable(0), TIMEOUT);
+    }
+}
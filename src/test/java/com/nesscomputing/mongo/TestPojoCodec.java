@@ -0,0 +1,191 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import org.bson.io.BasicOutputBuffer;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.inject.Guice;
+import com.google.inject.Stage;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.DefaultDBEncoder;
+
+public class TestPojoCodec
+{
+    enum Color
+    {
+        RED, GREEN
+    }
+
+    public static class Part
+    {
+        private final String name;
+
+        Part(final String name)
+        {
+            this.name = name;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+    }
+
+    public interface HasId<T>
+    {
+        T getId();
+    }
+
+    public static class Event implements HasId<String>
+    {
+        @Override
+        public String getId()
+        {
+            return "event-1";
+        }
+    }
+
+    public static class Widget
+    {
+        private final UUID uuid = UUID.randomUUID();
+        private final DateTime created = new DateTime(2012, 5, 1, 12, 0, 0, 0, DateTimeZone.UTC);
+
+        @MongoField("_id")
+        public String getKey()
+        {
+            return "widget-1";
+        }
+
+        public int getCount()
+        {
+            return 3;
+        }
+
+        public boolean isActive()
+        {
+            return true;
+        }
+
+        public UUID getUuid()
+        {
+            return uuid;
+        }
+
+        public DateTime getCreated()
+        {
+            return created;
+        }
+
+        public Color getColor()
+        {
+            return Color.GREEN;
+        }
+
+        public Part getMainPart()
+        {
+            return new Part("main");
+        }
+
+        public List<Part> getParts()
+        {
+            return ImmutableList.of(new Part("a"), new Part("b"));
+        }
+
+        public String getNothing()
+        {
+            return null;
+        }
+
+        public static String getStatic()
+        {
+            return "static";
+        }
+    }
+
+    @Before
+    public void setUp()
+    {
+        // Registers the UUID and DateTime transformers.
+        Guice.createInjector(Stage.PRODUCTION, new NessMongoModule());
+    }
+
+    private static DBObject roundTrip(final DBObject dbObject)
+    {
+        final BasicOutputBuffer buffer = new BasicOutputBuffer();
+        DefaultDBEncoder.FACTORY.create().writeObject(buffer, dbObject);
+        return DefaultDBDecoder.FACTORY.create().decode(buffer.toByteArray(), (DBCollection) null);
+    }
+
+    @Test
+    public void testFields()
+    {
+        final PojoCodec<Widget> codec = PojoCodec.forClass(Widget.class);
+        Assert.assertSame(codec, PojoCodec.forClass(Widget.class));
+        Assert.assertEquals(ImmutableSet.of("_id", "active", "color", "count", "created", "mainPart", "nothing", "parts", "uuid"), codec.getFieldNames());
+    }
+
+    @Test
+    public void testEncode()
+    {
+        final Widget widget = new Widget();
+        final DBObject decoded = roundTrip(PojoCodec.forClass(Widget.class).toDBObject(widget));
+
+        Assert.assertEquals("widget-1", decoded.get("_id"));
+        Assert.assertEquals(3, decoded.get("count"));
+        Assert.assertEquals(Boolean.TRUE, decoded.get("active"));
+        Assert.assertEquals(widget.getUuid().toString(), decoded.get("uuid"));
+        Assert.assertEquals(widget.getCreated().toDate(), decoded.get("created"));
+        Assert.assertTrue(decoded.get("created") instanceof Date);
+        Assert.assertEquals("GREEN", decoded.get("color"));
+        Assert.assertEquals("main", ((DBObject) decoded.get("mainPart")).get("name"));
+        Assert.assertEquals("b", ((DBObject) ((List<?>) decoded.get("parts")).get(1)).get("name"));
+        Assert.assertTrue(decoded.containsField("nothing"));
+        Assert.assertNull(decoded.get("nothing"));
+    }
+
+    @Test
+    public void testPutField()
+    {
+        final DBObject dbObject = PojoCodec.convert(new Part("x"));
+        Assert.assertNull(dbObject.get("_id"));
+        dbObject.put("_id", "id");
+
+        final DBObject decoded = roundTrip(dbObject);
+        Assert.assertEquals("id", decoded.get("_id"));
+        Assert.assertEquals("x", decoded.get("name"));
+    }
+
+    @Test
+    public void testGenericGetter()
+    {
+        final PojoCodec<Event> codec = PojoCodec.forClass(Event.class);
+        Assert.assertEquals(ImmutableSet.of("id"), codec.getFieldNames());
+        Assert.assertEquals("event-1", roundTrip(codec.toDBObject(new Event())).get("id"));
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import org.bson.types.ObjectId;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestRecentIdFilter
+{
+    @Test
+    public void testMightContain()
+    {
+        final RecentIdFilter filter = new RecentIdFilter(1000, 0.000001d);
+        final ObjectId id = ObjectId.get();
+
+        Assert.assertFalse(filter.mightContain(id));
+        Assert.assertFalse(filter.mightContain(id));
+        filter.add(id);
+        Assert.assertTrue(filter.mightContain(id));
+        Assert.assertTrue(filter.mightContain(new ObjectId(id.toByteArray())));
+
+        Assert.assertFalse(filter.mightContain("a string id"));
+        filter.add("a string id");
+        Assert.assertTrue(filter.mightContain("a string id"));
+    }
+
+    @Test
+    public void testNumericIdsMatchByValue()
+    {
+        final RecentIdFilter filter = new RecentIdFilter(1000, 0.000001d);
+
+        filter.add(1);
+        Assert.assertTrue(filter.mightContain(1));
+        Assert.assertTrue(filter.mightContain(1L));
+        Assert.assertTrue(filter.mightContain(1.0d));
+        Assert.assertFalse(filter.mightContain("1"));
+        Assert.assertFalse(filter.mightContain(1.5d));
+
+        filter.add(1.5f);
+        Assert.assertTrue(filter.mightContain(1.5d));
+    }
+
+    @Test
+    public void testRemembersAtLeastExpectedIds()
+    {
+        final int expectedIds = 1000;
+        final RecentIdFilter filter = new RecentIdFilter(expectedIds, 0.000001d);
+        final ObjectId [] ids = new ObjectId[expectedIds * 3];
+
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = ObjectId.get();
+            Assert.assertFalse(filter.mightContain(ids[i]));
+            filter.add(ids[i]);
+        }
+
+        // The last expectedIds ids are always remembered.
+        for (int i = ids.length - expectedIds; i < ids.length; i++) {
+            Assert.assertTrue(filter.mightContain(ids[i]));
+        }
+
+        // The oldest ones have rotated out.
+        int forgotten = 0;
+        for (int i = 0; i < expectedIds; i++) {
+            if (!filter.mightContain(ids[i])) {
+                forgotten++;
+            }
+        }
+        Assert.assertTrue(forgotten > 0);
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.mongo;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestStripedCounter
+{
+    @Test
+    public void testSingleThread()
+    {
+        final StripedCounter counter = new StripedCounter();
+        Assert.assertEquals(0L, counter.get());
+
+        counter.increment();
+        counter.add(41L);
+        Assert.assertEquals(42L, counter.get());
+
+        counter.add(-2L);
+        Assert.assertEquals(40L, counter.get());
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws Exception
+    {
+        final int threads = 8;
+        final int increments = 100000;
+
+        final StripedCounter counter = new StripedCounter();
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final Thread [] updaters = new Thread[threads];
+
+        for (int i = 0; i < threads; i++) {
+            updaters[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                        for (int j = 0; j < increments; j++) {
+                            counter.increment();
+                        }
+                    }
+                    catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            updaters[i].start();
+        }
+
+        startLatch.countDown();
+        for (Thread updater : updaters) {
+            updater.join();
+        }
+
+        Assert.assertEquals((long) threads * increments, counter.get());
+    }
+}